@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A FeedObserver that receives every object added to a feed, rather than
+ * only the latest one when several arrive together.
+ */
+public abstract class BatchFeedObserver implements FeedObserver {
+    /**
+     * Called with the objects added to the feed since the last call, oldest
+     * first. The list may not be modified.
+     */
+    public abstract void onUpdates(List<DbObj> newObjs);
+
+    @Override
+    public final void onUpdate(DbObj latestObj) {
+        onUpdates(Collections.singletonList(latestObj));
+    }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+
+/**
+ * Binary json encoding using the MessagePack type bytes for nil, booleans,
+ * integers, doubles, strings, arrays and maps. The encoded map is preceded
+ * by {@link #MARKER}, which MessagePack leaves unused and which is never
+ * valid at the start of UTF-8 json text.
+ * <p>
+ * The json column always holds json text, which every client can read. The
+ * binary encoding goes in the raw column of objects that have no raw
+ * payload of their own, where this client decodes it in place of the text.
+ * Values written to the json column by earlier versions are still decoded.
+ */
+class BinaryObjCodec extends ObjCodec {
+    static final byte MARKER = (byte) 0xc1;
+
+    private static final int NIL = 0xc0;
+    private static final int FALSE = 0xc2;
+    private static final int TRUE = 0xc3;
+    private static final int FLOAT64 = 0xcb;
+    private static final int INT32 = 0xd2;
+    private static final int INT64 = 0xd3;
+    private static final int STR8 = 0xd9;
+    private static final int STR16 = 0xda;
+    private static final int STR32 = 0xdb;
+    private static final int ARRAY16 = 0xdc;
+    private static final int ARRAY32 = 0xdd;
+    private static final int MAP16 = 0xde;
+    private static final int MAP32 = 0xdf;
+
+    private static final ThreadLocal<Writer> sWriter = new ThreadLocal<Writer>() {
+        @Override
+        protected Writer initialValue() {
+            return new Writer();
+        }
+    };
+
+    @Override
+    public void putJson(ContentValues values, JSONObject json) {
+        putJson(values, json, null);
+    }
+
+    /**
+     * Stores json text in the json column and the binary encoding in the raw
+     * column, where an object's own raw payload, put later, replaces it.
+     */
+    @Override
+    public void putJson(ContentValues values, JSONObject json, JSONObject overlay) {
+        JSON.putJson(values, json, overlay);
+        values.put(DbObj.COL_RAW, encode(json, overlay));
+    }
+
+    static byte[] encode(JSONObject json) {
+        return encode(json, null);
+    }
+
+    static byte[] encode(JSONObject json, JSONObject overlay) {
+        Writer w = sWriter.get();
+        w.reset();
+        w.writeByte(MARKER);
+        w.writeObject(json, overlay);
+        return w.toByteArray();
+    }
+
+    static boolean isBinary(byte[] stored) {
+        return stored.length > 0 && stored[0] == MARKER;
+    }
+
+    /**
+     * Decodes a raw payload written by this codec, or returns null if the
+     * payload is an app's own that merely begins with the marker.
+     */
+    static JSONObject decodeRaw(byte[] raw) {
+        if (!isBinary(raw)) {
+            return null;
+        }
+        try {
+            Reader r = new Reader(raw, 1);
+            Object value = r.readValue();
+            if (!(value instanceof JSONObject) || !r.atEnd()) {
+                return null;
+            }
+            return (JSONObject) value;
+        } catch (JSONException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    static JSONObject decodeObject(byte[] stored) throws JSONException {
+        Reader r = new Reader(stored, 1);
+        Object value = r.readValue();
+        if (!(value instanceof JSONObject)) {
+            throw new JSONException("Encoded value is not an object");
+        }
+        return (JSONObject) value;
+    }
+
+    /**
+     * A growable byte buffer, reused across encodes on the same thread.
+     */
+    static final class Writer {
+        private byte[] mBuf = new byte[256];
+        private int mCount;
+
+        void reset() {
+            mCount = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(mBuf, mCount);
+        }
+
+        private void ensure(int extra) {
+            if (mCount + extra > mBuf.length) {
+                mBuf = Arrays.copyOf(mBuf, Math.max(mBuf.length * 2, mCount + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            mBuf[mCount++] = (byte) b;
+        }
+
+        private void writeShort(int v) {
+            ensure(2);
+            mBuf[mCount++] = (byte) (v >>> 8);
+            mBuf[mCount++] = (byte) v;
+        }
+
+        private void writeInt(int v) {
+            ensure(4);
+            mBuf[mCount++] = (byte) (v >>> 24);
+            mBuf[mCount++] = (byte) (v >>> 16);
+            mBuf[mCount++] = (byte) (v >>> 8);
+            mBuf[mCount++] = (byte) v;
+        }
+
+        private void writeLong(long v) {
+            writeInt((int) (v >>> 32));
+            writeInt((int) v);
+        }
+
+        void writeObject(JSONObject json) {
+            writeObject(json, null);
+        }
+
+        /**
+         * Writes json with the fields of overlay in place of any of the
+         * same name.
+         */
+        void writeObject(JSONObject json, JSONObject overlay) {
+            int size = json.length();
+            if (overlay != null) {
+                Iterator<?> keys = overlay.keys();
+                while (keys.hasNext()) {
+                    if (!json.has((String) keys.next())) {
+                        size++;
+                    }
+                }
+            }
+            if (size < 16) {
+                writeByte(0x80 | size);
+            } else if (size < 0x10000) {
+                writeByte(MAP16);
+                writeShort(size);
+            } else {
+                writeByte(MAP32);
+                writeInt(size);
+            }
+            Iterator<?> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                if (overlay != null && overlay.has(key)) {
+                    continue;
+                }
+                writeString(key);
+                writeValue(json.opt(key));
+            }
+            if (overlay != null) {
+                keys = overlay.keys();
+                while (keys.hasNext()) {
+                    String key = (String) keys.next();
+                    writeString(key);
+                    writeValue(overlay.opt(key));
+                }
+            }
+        }
+
+        void writeArray(JSONArray array) {
+            int size = array.length();
+            if (size < 16) {
+                writeByte(0x90 | size);
+            } else if (size < 0x10000) {
+                writeByte(ARRAY16);
+                writeShort(size);
+            } else {
+                writeByte(ARRAY32);
+                writeInt(size);
+            }
+            for (int i = 0; i < size; i++) {
+                writeValue(array.opt(i));
+            }
+        }
+
+        void writeValue(Object value) {
+            if (value == null || value == JSONObject.NULL) {
+                writeByte(NIL);
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Boolean) {
+                writeByte(((Boolean) value) ? TRUE : FALSE);
+            } else if (value instanceof Integer || value instanceof Long
+                    || value instanceof Short || value instanceof Byte) {
+                writeInteger(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                writeByte(FLOAT64);
+                writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+            } else if (value instanceof JSONObject) {
+                writeObject((JSONObject) value);
+            } else if (value instanceof JSONArray) {
+                writeArray((JSONArray) value);
+            } else {
+                writeString(value.toString());
+            }
+        }
+
+        private void writeInteger(long v) {
+            if (v >= -32 && v < 128) {
+                writeByte((int) v);
+            } else if (v >= Integer.MIN_VALUE && v <= Integer.MAX_VALUE) {
+                writeByte(INT32);
+                writeInt((int) v);
+            } else {
+                writeByte(INT64);
+                writeLong(v);
+            }
+        }
+
+        /**
+         * Writes a string as UTF-8 directly into the buffer, without an
+         * intermediate byte array.
+         */
+        void writeString(String s) {
+            int chars = s.length();
+            int length = 0;
+            for (int i = 0; i < chars; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    length += 1;
+                } else if (c < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+
+            if (length < 32) {
+                writeByte(0xa0 | length);
+            } else if (length < 0x100) {
+                writeByte(STR8);
+                writeByte(length);
+            } else if (length < 0x10000) {
+                writeByte(STR16);
+                writeShort(length);
+            } else {
+                writeByte(STR32);
+                writeInt(length);
+            }
+
+            ensure(length);
+            byte[] buf = mBuf;
+            int n = mCount;
+            for (int i = 0; i < chars; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    buf[n++] = (byte) c;
+                } else if (c < 0x800) {
+                    buf[n++] = (byte) (0xc0 | (c >> 6));
+                    buf[n++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < chars
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    buf[n++] = (byte) (0xf0 | (cp >> 18));
+                    buf[n++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    buf[n++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    buf[n++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    buf[n++] = (byte) (0xe0 | (c >> 12));
+                    buf[n++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    buf[n++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            mCount = n;
+        }
+    }
+
+    static final class Reader {
+        private final byte[] mBuf;
+        private int mPos;
+
+        Reader(byte[] buf, int pos) {
+            mBuf = buf;
+            mPos = pos;
+        }
+
+        boolean atEnd() {
+            return mPos == mBuf.length;
+        }
+
+        private int readByte() throws JSONException {
+            if (mPos >= mBuf.length) {
+                throw new JSONException("Truncated binary obj");
+            }
+            return mBuf[mPos++] & 0xff;
+        }
+
+        private int readShort() throws JSONException {
+            return (readByte() << 8) | readByte();
+        }
+
+        private int readInt() throws JSONException {
+            return (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+        }
+
+        private long readLong() throws JSONException {
+            return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+        }
+
+        Object readValue() throws JSONException {
+            int b = readByte();
+            if (b < 0x80) {
+                return b;
+            }
+            if (b >= 0xe0) {
+                return (int) (byte) b;
+            }
+            if ((b & 0xf0) == 0x80) {
+                return readObject(b & 0x0f);
+            }
+            if ((b & 0xf0) == 0x90) {
+                return readArray(b & 0x0f);
+            }
+            if ((b & 0xe0) == 0xa0) {
+                return readString(b & 0x1f);
+            }
+            switch (b) {
+                case NIL:
+                    return JSONObject.NULL;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case FLOAT64:
+                    return Double.longBitsToDouble(readLong());
+                case INT32:
+                    return readInt();
+                case INT64:
+                    return readLong();
+                case STR8:
+                    return readString(readByte());
+                case STR16:
+                    return readString(readShort());
+                case STR32:
+                    return readString(readInt());
+                case ARRAY16:
+                    return readArray(readShort());
+                case ARRAY32:
+                    return readArray(readInt());
+                case MAP16:
+                    return readObject(readShort());
+                case MAP32:
+                    return readObject(readInt());
+                default:
+                    throw new JSONException("Unknown type byte " + b);
+            }
+        }
+
+        private String readString(int length) throws JSONException {
+            if (length < 0 || mPos + length > mBuf.length) {
+                throw new JSONException("Truncated binary obj");
+            }
+            String s = new String(mBuf, mPos, length, UTF_8);
+            mPos += length;
+            return s;
+        }
+
+        private JSONObject readObject(int size) throws JSONException {
+            JSONObject json = new JSONObject();
+            for (int i = 0; i < size; i++) {
+                Object key = readValue();
+                if (!(key instanceof String)) {
+                    throw new JSONException("Non-string key " + key);
+                }
+                json.put((String) key, readValue());
+            }
+            return json;
+        }
+
+        private JSONArray readArray(int size) throws JSONException {
+            JSONArray array = new JSONArray();
+            for (int i = 0; i < size; i++) {
+                array.put(readValue());
+            }
+            return array;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import mobisocial.socialkit.SignedObj;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.database.Cursor;
+import android.util.Log;
+
+/**
+ * A reusable SignedObj view over the current row of an object cursor.
+ * Fields are read from the cursor on each call, so one view serves a whole
+ * scan without allocating an object per row. Reading a field whose column
+ * is not in the cursor throws IllegalStateException. Use {@link #detach()}
+ * to keep a copy of the current row once the cursor has moved on.
+ */
+public class CursorObjView implements SignedObj {
+    private final Musubi mMusubi;
+    private final Cursor mCursor;
+    private final ObjCursorMapper.Layout mLayout;
+
+    // The decoded json of the row at mJsonPosition.
+    private int mJsonPosition = -1;
+    private JSONObject mJson;
+
+    public CursorObjView(Musubi musubi, Cursor cursor) {
+        mMusubi = musubi;
+        mCursor = cursor;
+        mLayout = new ObjCursorMapper.Layout(cursor);
+    }
+
+    /**
+     * Returns the cursor this view reads from.
+     */
+    public Cursor getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Copies the current row into a DbObj that remains valid after the
+     * cursor moves or is closed.
+     */
+    public DbObj detach() {
+        return mLayout.decode(mMusubi, mCursor);
+    }
+
+    public long getLocalId() {
+        return mCursor.getLong(mLayout.require(mLayout.id, DbObj.COL_ID));
+    }
+
+    public long getSenderId() {
+        return mCursor.getLong(mLayout.require(mLayout.senderId, DbObj.COL_IDENTITY_ID));
+    }
+
+    @Override
+    public String getType() {
+        return mCursor.getString(mLayout.require(mLayout.type, DbObj.COL_TYPE));
+    }
+
+    @Override
+    public String getStringKey() {
+        return mCursor.getString(mLayout.require(mLayout.stringKey, DbObj.COL_STRING_KEY));
+    }
+
+    /**
+     * Returns the json of the current row, decoded at most once per row.
+     */
+    @Override
+    public JSONObject getJson() {
+        int index = mLayout.require(mLayout.json, DbObj.COL_JSON);
+        int position = mCursor.getPosition();
+        if (position != mJsonPosition) {
+            try {
+                mJson = ObjCodec.decode(mCursor.getBlob(index));
+            } catch (JSONException e) {
+                Log.e(Musubi.TAG, "Couldn't parse obj at " + position, e);
+                mJson = null;
+            }
+            mJsonPosition = position;
+        }
+        return mJson;
+    }
+
+    @Override
+    public byte[] getRaw() {
+        int index = mLayout.require(mLayout.raw, DbObj.COL_RAW);
+        return mCursor.isNull(index) ? null : mCursor.getBlob(index);
+    }
+
+    @Override
+    public Integer getIntKey() {
+        int index = mLayout.require(mLayout.intKey, DbObj.COL_INT_KEY);
+        return mCursor.isNull(index) ? null : mCursor.getInt(index);
+    }
+
+    @Override
+    public long getHash() {
+        int index = mLayout.require(mLayout.hash, DbObj.COL_UNIVERSAL_HASH);
+        return mCursor.isNull(index) ? 0 : MusubiUtil.shortHash(mCursor.getBlob(index));
+    }
+
+    @Override
+    public String getAppId() {
+        return mCursor.getString(mLayout.require(mLayout.appId, DbObj.COL_APP_ID));
+    }
+
+    @Override
+    public DbIdentity getSender() {
+        DbIdentity sender = mLayout.decodeSender(mMusubi, mCursor);
+        if (sender != null) {
+            return sender;
+        }
+        return mMusubi.userForLocalId(null, getSenderId());
+    }
+
+    @Override
+    public long getTimestamp() {
+        return mCursor.getLong(mLayout.require(mLayout.timestamp, DbObj.COL_TIMESTAMP));
+    }
+}
@@ -16,19 +16,26 @@
 
 package mobisocial.socialkit.musubi;
 
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
 
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.musubi.Musubi.DbThing;
-import android.content.ContentUris;
 import android.content.ContentValues;
-import android.database.ContentObserver;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Handler;
 import android.util.Log;
 
 /**
@@ -44,14 +51,20 @@ public final class DbFeed {
     private final Uri mFeedUri;
     private final Long mFeedId;
     private final Long mParentObjectId;
-    private final ContentObserver mContentObserver;
+    private final DebouncedContentObserver<List<DbObj>> mContentObserver;
     private final Set<FeedObserver> mObservers = new HashSet<FeedObserver>();
     private boolean mObservingProvider = false;
 
+    // The largest object id delivered to observers: 0 for an empty feed,
+    // or -1 when the baseline couldn't be read.
+    private long mHighWater = -1;
+    private static final int UPDATE_PAGE_SIZE = 256;
+
     private String[] mProjection = null;
     private String mSelection = null;
     private String[] mSelectionArgs = null;
     private String mSortOrder = DbObj.COL_ID + " desc";
+    private ObjCodec mCodec = ObjCodec.JSON;
 
     DbFeed(Musubi musubi, Uri feedUri) {
         mMusubi = musubi;
@@ -78,11 +91,15 @@ public final class DbFeed {
             throw new IllegalArgumentException("Feed id not found.");
         }
 
-        mContentObserver = new ContentObserver(new Handler(
-                mMusubi.getContext().getMainLooper())) {
+        mContentObserver = new DebouncedContentObserver<List<DbObj>>(mMusubi.getContext()) {
             @Override
-            public void onChange(boolean selfChange) {
-                doContentChanged();
+            protected List<DbObj> query() {
+                return queryNewObjs();
+            }
+
+            @Override
+            protected void deliver(List<DbObj> newObjs) {
+                dispatchUpdates(newObjs);
             }
         };
     }
@@ -129,10 +146,8 @@ public final class DbFeed {
      */
     public DbObj getLatestObj(String type) {
         Log.d(TAG, "querying latest on " + this);
-        String sortOrder = DbObj.COL_ID + " desc";
-        String selection = "type = ?";
-        String[] args = new String[] { type };
-        Cursor cursor = query(mProjection, selection, args, sortOrder);
+        Cursor cursor = ObjQuery.where(DbObj.COL_TYPE).eq(type)
+                .orderByDesc(DbObj.COL_ID).limit(1).query(this, mProjection);
         if (cursor != null && cursor.moveToFirst()) {
             try {
                 return mMusubi.objForCursor(cursor);
@@ -173,6 +188,25 @@ public final class DbFeed {
         return query(null, selection, selectionArgs, "_id desc");
     }
 
+    /**
+     * Issues a query over the headers of this feed's objects, leaving out
+     * their json and raw payloads. Objects decoded from the cursor fetch
+     * their payloads when first requested.
+     */
+    public Cursor queryHeaders(String selection, String[] selectionArgs, String order) {
+        return query(DbObj.Projection.HEADER.getColumns(), selection, selectionArgs, order);
+    }
+
+    /**
+     * Issues a query over this feed's objects with each sender's identity
+     * joined in, so that objects decoded from the cursor need no further
+     * query for {@link DbObj#getSender()}.
+     * @see DbObj.Projection#WITH_SENDER
+     */
+    public Cursor queryWithSenders(String selection, String[] selectionArgs, String order) {
+        return query(DbObj.Projection.WITH_SENDER.getColumns(), selection, selectionArgs, order);
+    }
+
     /**
      * Issues a query over this feed's objects.
      */
@@ -180,16 +214,50 @@ public final class DbFeed {
         return query(mProjection, mSelection, mSelectionArgs, mSortOrder);
     }
 
+    /**
+     * Returns this feed's objects, newest first, using the feed's query
+     * arguments. Objects are fetched pageSize rows at a time with an _id
+     * keyset predicate, and each page's cursor is closed before its objects
+     * are returned, so memory use is bounded by the page rather than the feed.
+     */
+    public Iterable<DbObj> iterate(final int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("Page size must be positive, not " + pageSize);
+        }
+        return new Iterable<DbObj>() {
+            @Override
+            public Iterator<DbObj> iterator() {
+                return new PageIterator(pageSize);
+            }
+        };
+    }
+
     /**
      * @hide
      */
     public void registerStateObserver(FeedObserver observer) {
         synchronized (DbFeed.this) {
             mObservers.add(observer);
-        }
-        if (!mObservingProvider) {
+            if (mObservingProvider) {
+                return;
+            }
             if (DBG) Log.d(TAG, "Enabling feed observer on " + mFeedUri);
             mObservingProvider = true;
+            // Read ahead of any refresh, which runs on the same thread.
+            DebouncedContentObserver.post(new Runnable() {
+                @Override
+                public void run() {
+                    long highWater = -1;
+                    try {
+                        highWater = queryLatestId();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Error querying for latest obj", e);
+                    }
+                    synchronized (DbFeed.this) {
+                        mHighWater = highWater;
+                    }
+                }
+            });
             mMusubi.getContext().getContentResolver().registerContentObserver(mFeedUri, false,
                     mContentObserver);
         }
@@ -199,25 +267,130 @@ public final class DbFeed {
      * @hide
      */
     public boolean unregisterStateObserver(FeedObserver observer) {
-        boolean removed = mObservers.remove(observer);
-        if (mObservers.size() == 0) {
-            mObservingProvider = false;
-            mMusubi.getContext().getContentResolver().unregisterContentObserver(mContentObserver);
+        synchronized (DbFeed.this) {
+            boolean removed = mObservers.remove(observer);
+            if (mObservers.isEmpty() && mObservingProvider) {
+                mObservingProvider = false;
+                mMusubi.getContext().getContentResolver().unregisterContentObserver(
+                        mContentObserver);
+            }
+            return removed;
         }
-        return removed;
+    }
+
+    /**
+     * Sets the executor that feed observers are called on. By default they
+     * are called on the main thread; the feed is queried in the background
+     * either way.
+     */
+    public void setObserverExecutor(Executor executor) {
+        mContentObserver.setCallbackExecutor(executor);
+    }
+
+    /**
+     * Sets how long changes to the feed are collected for before observers
+     * are updated, so a burst of posts is read in one query. Defaults to
+     * {@link DebouncedContentObserver#DEFAULT_DEBOUNCE_MILLIS}.
+     */
+    public void setObserverDebounce(long millis) {
+        mContentObserver.setDebounceMillis(millis);
+    }
+
+    /**
+     * Sets the codec used to encode the json of objects posted to this feed.
+     * Defaults to {@link ObjCodec#JSON}.
+     */
+    public void setObjCodec(ObjCodec codec) {
+        mCodec = codec;
     }
 
     /**
      * Inserts an object into this feed using a background thread.
      */
     public void postObj(Obj obj) {
-        ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj);
+        ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj, mCodec);
         Uri objectsUri = Musubi.uriForDir(DbThing.OBJECT);
         mMusubi.getContentProviderThread().insert(objectsUri, values);
     }
 
+    /**
+     * Inserts an object into this feed using a background thread, copying
+     * its raw payload from the given stream in chunks once the object exists.
+     * The stream is closed when the copy completes. The obj itself must not
+     * carry a raw payload.
+     */
+    public void postObj(Obj obj, InputStream raw) {
+        if (obj.getRaw() != null) {
+            throw new IllegalArgumentException("Obj already has a raw payload");
+        }
+        ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj, mCodec);
+        Uri objectsUri = Musubi.uriForDir(DbThing.OBJECT);
+        mMusubi.getContentProviderThread().insert(objectsUri, values, raw);
+    }
+
+    /**
+     * Inserts an object into this feed using the background thread, without
+     * blocking. The returned future yields the new object's uri, or fails
+     * with the reason the object could not be inserted. It can be cancelled
+     * until the insertion starts.
+     */
+    public Future<Uri> postObjAsync(Obj obj) {
+        return postObjAsync(obj, null);
+    }
+
+    /**
+     * Inserts an object into this feed using the background thread, and
+     * reports the outcome to the given callback as well as the returned
+     * future. The callback runs on the background thread and must not block.
+     */
+    public Future<Uri> postObjAsync(Obj obj, PostCallback callback) {
+        ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj, mCodec);
+        Uri objectsUri = Musubi.uriForDir(DbThing.OBJECT);
+        return mMusubi.getContentProviderThread().insertAsync(objectsUri, values, obj,
+                callback);
+    }
+
+    /**
+     * Inserts several objects into this feed in a single batch on the
+     * current thread, returning their uris in order. Either every object is
+     * inserted or, if the batch fails, none is; this relies on the Musubi
+     * provider applying a batch in one transaction.
+     */
+    public List<Uri> postObjs(List<? extends Obj> objs) throws OperationApplicationException {
+        return mMusubi.getContentProviderThread().insertAll(Musubi.uriForDir(DbThing.OBJECT),
+                toContentValues(objs));
+    }
+
+    /**
+     * Inserts several objects into this feed in a single batch using the
+     * background thread, after any objects already posted. The returned
+     * future yields their uris in order, or fails if none was inserted.
+     * @see #postObjs(List)
+     */
+    public Future<List<Uri>> postObjsAsync(List<? extends Obj> objs) {
+        return mMusubi.getContentProviderThread().insertAllAsync(
+                Musubi.uriForDir(DbThing.OBJECT), toContentValues(objs));
+    }
+
+    private List<ContentValues> toContentValues(List<? extends Obj> objs) {
+        List<ContentValues> rows = new ArrayList<ContentValues>(objs.size());
+        for (Obj obj : objs) {
+            rows.add(DbObj.toContentValues(mFeedUri, mParentObjectId, obj, mCodec));
+        }
+        return rows;
+    }
+
+    /**
+     * Receives the outcome of {@link DbFeed#postObjAsync(Obj, PostCallback)}.
+     */
+    public interface PostCallback {
+        public void onObjPosted(Obj obj, Uri objUri);
+
+        public void onPostFailed(Obj obj, Exception error);
+    }
+
     public Uri postObjSync(Obj obj) {
-    	ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj);
+    	ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj, mCodec);
         Uri objectsUri = Musubi.uriForDir(DbThing.OBJECT);
         return mMusubi.getContentProviderThread().insertSync(objectsUri, values);
     }
@@ -226,17 +399,69 @@ public final class DbFeed {
      * Inserts an object into this feed on the current thread.
      */
     public Uri insert(Obj obj) {
-        ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj);
+        ContentValues values = DbObj.toContentValues(mFeedUri, mParentObjectId, obj, mCodec);
         Uri objectsUri = Musubi.uriForDir(DbThing.OBJECT);
         return mMusubi.getContext().getContentResolver().insert(objectsUri, values);
     }
 
+    /**
+     * Deletes this feed's objects that match the query, using the background
+     * thread once every object already posted has been inserted.
+     */
+    public void deleteObjs(ObjQuery query) {
+        if (query.getSortOrder() != null) {
+            throw new IllegalArgumentException("A delete can't be ordered or limited");
+        }
+        ObjQuery scoped = query.copy().and(DbObj.COL_FEED_ID).eq(mFeedId);
+        if (mParentObjectId != null) {
+            scoped.and(DbObj.COL_PARENT_ID).eq(mParentObjectId);
+        }
+        mMusubi.getContentProviderThread().delete(getObjectsUri(), scoped.getSelection(),
+                scoped.getSelectionArgs());
+    }
+
     public DbIdentity getLocalUser() {
         return mMusubi.userForLocalDevice(mFeedUri);
     }
 
+    /**
+     * Returns the member of this feed with the given principal, or null.
+     * Members are looked up in an index that is built with one query and
+     * kept until the feed's membership changes.
+     */
     public DbIdentity userForGlobalId(String personId) {
-        return mMusubi.userForGlobalId(mFeedUri, personId);
+        return userForPrincipal(PrincipalId.fromHex(personId));
+    }
+
+    /**
+     * Returns the member of this feed with the given principal, or null.
+     */
+    public DbIdentity userForPrincipal(PrincipalId principal) {
+        DbIdentity user = getMemberIndex().get(principal);
+        if (user == null) {
+            Log.e(TAG, "id not found in " + this + ": " + principal);
+        }
+        return user;
+    }
+
+    /**
+     * Returns the members by principal, from the process-wide index that
+     * is shared by every instance for this feed.
+     */
+    private Map<PrincipalId, DbIdentity> getMemberIndex() {
+        MemberIndexCache cache = Musubi.getMemberIndexCache();
+        Map<PrincipalId, DbIdentity> index = cache.get(mFeedId);
+        if (index != null) {
+            return index;
+        }
+        long generation = cache.generation();
+        List<DbIdentity> members = getMembers();
+        index = new HashMap<PrincipalId, DbIdentity>(members.size() * 2);
+        for (DbIdentity member : members) {
+            index.put(member.getPrincipalId(), member);
+        }
+        cache.put(mFeedId, index, generation);
+        return index;
     }
 
     /**
@@ -264,29 +489,100 @@ public final class DbFeed {
         }
     }
 
-    private void doContentChanged() {
+    /**
+     * Returns the id of the newest object in this feed, 0 if the feed is
+     * empty, or -1 if it can't be read.
+     */
+    private long queryLatestId() {
+        ObjQuery q = ObjQuery.where(DbObj.COL_FEED_ID).eq(mFeedId)
+                .orderByDesc(DbObj.COL_ID).limit(1);
+        Uri uri = Musubi.uriForDir(DbThing.OBJECT);
+        Cursor c = mMusubi.getContext().getContentResolver().query(uri,
+                new String[] { DbObj.COL_ID }, q.getSelection(), q.getSelectionArgs(),
+                q.getSortOrder());
+        if (c == null) {
+            return -1;
+        }
+        try {
+            // Ids start at 1, so every object of an empty feed is above 0.
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Returns the objects added since the last query, found with keyset
+     * queries above the high-water id, or null if there are none. Runs on
+     * the observer's background thread.
+     */
+    private List<DbObj> queryNewObjs() {
         if (DBG) Log.d(TAG, "noticed change to feed " + mFeedUri);
-        DbObj obj = null;
+        long highWater;
+        synchronized (DbFeed.this) {
+            highWater = mHighWater;
+        }
+        List<DbObj> objs = new ArrayList<DbObj>();
         try {
-            String selection = DbObj.COL_FEED_ID + "=?";
-            String[] selectionArgs = new String[] { Long.toString(ContentUris.parseId(mFeedUri)) };
             Uri uri = Musubi.uriForDir(DbThing.OBJECT);
-            String order = "_id desc LIMIT 1"; // TODO: fix.
-            Cursor c = mMusubi.getContext().getContentResolver().query(uri, null, selection,
-                    selectionArgs, order);
-            if (c.moveToFirst()) {
-                obj = mMusubi.objForCursor(c);
+            while (true) {
+                ObjQuery q = ObjQuery.where(DbObj.COL_FEED_ID).eq(mFeedId);
+                if (highWater == -1) {
+                    // No known baseline, so only the newest object is new.
+                    q.orderByDesc(DbObj.COL_ID).limit(1);
+                } else {
+                    q.and(DbObj.COL_ID).gt(highWater)
+                            .orderBy(DbObj.COL_ID).limit(UPDATE_PAGE_SIZE);
+                }
+                Cursor c = mMusubi.getContext().getContentResolver().query(uri,
+                        DbObj.Projection.DEFAULT.getColumns(), q.getSelection(),
+                        q.getSelectionArgs(), q.getSortOrder());
+                int count = 0;
+                try {
+                    while (c.moveToNext()) {
+                        DbObj obj = mMusubi.objForCursor(c);
+                        objs.add(obj);
+                        highWater = obj.getLocalId();
+                        count++;
+                    }
+                } finally {
+                    c.close();
+                }
+                if (count < UPDATE_PAGE_SIZE) {
+                    break;
+                }
             }
         } catch (Exception e) {
             Log.e(TAG, "Error querying for app state", e);
-            return;
+            return null;
+        }
+        if (objs.isEmpty()) {
+            return null;
+        }
+        synchronized (DbFeed.this) {
+            mHighWater = Math.max(mHighWater, highWater);
         }
-        if (obj == null) {
+        return Collections.unmodifiableList(objs);
+    }
+
+    /**
+     * Batch observers get all of the new objects; others get the newest.
+     */
+    private void dispatchUpdates(List<DbObj> newObjs) {
+        if (newObjs == null) {
             return;
         }
+        DbObj latest = newObjs.get(newObjs.size() - 1);
+        // Called outside the lock, so an observer may unregister itself.
+        FeedObserver[] observers;
         synchronized (DbFeed.this) {
-            for (FeedObserver observer : mObservers) {
-                observer.onUpdate(obj);
+            observers = mObservers.toArray(new FeedObserver[mObservers.size()]);
+        }
+        for (FeedObserver observer : observers) {
+            if (observer instanceof BatchFeedObserver) {
+                ((BatchFeedObserver) observer).onUpdates(newObjs);
+            } else {
+                observer.onUpdate(latest);
             }
         }
     }
@@ -299,6 +595,73 @@ public final class DbFeed {
         return Uri.parse("content://" + Musubi.AUTHORITY + "/feeds/" + feedId);
     }
 
+    private class PageIterator implements Iterator<DbObj> {
+        private final int mPageSize;
+        private final String[] mPageProjection;
+        private final ObjQuery mFeedQuery;
+        private final ObjCursorMapper mMapper = new ObjCursorMapper(mMusubi);
+        private final List<DbObj> mPage;
+        private int mPosition;
+        private long mLastSeenId = Long.MAX_VALUE;
+        private boolean mExhausted;
+
+        PageIterator(int pageSize) {
+            mPageSize = pageSize;
+            mPage = new ArrayList<DbObj>(pageSize);
+            mFeedQuery = ObjQuery.withSelection(mSelection, mSelectionArgs);
+            if (mProjection == null || Arrays.asList(mProjection).contains(DbObj.COL_ID)) {
+                mPageProjection = mProjection;
+            } else {
+                mPageProjection = new String[mProjection.length + 1];
+                System.arraycopy(mProjection, 0, mPageProjection, 0, mProjection.length);
+                mPageProjection[mProjection.length] = DbObj.COL_ID;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (mPosition == mPage.size() && !mExhausted) {
+                fetchPage();
+            }
+            return mPosition < mPage.size();
+        }
+
+        @Override
+        public DbObj next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mPage.get(mPosition++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void fetchPage() {
+            mPage.clear();
+            mPosition = 0;
+            Cursor c = mFeedQuery.copy().and(DbObj.COL_ID).lt(mLastSeenId)
+                    .orderByDesc(DbObj.COL_ID).limit(mPageSize)
+                    .query(DbFeed.this, mPageProjection);
+            if (c == null) {
+                mExhausted = true;
+                return;
+            }
+            try {
+                int idIndex = c.getColumnIndexOrThrow(DbObj.COL_ID);
+                while (mPage.size() < mPageSize && c.moveToNext()) {
+                    mPage.add(mMapper.objForCursor(c));
+                    mLastSeenId = c.getLong(idIndex);
+                }
+            } finally {
+                c.close();
+            }
+            mExhausted = mPage.size() < mPageSize;
+        }
+    }
+
     @Override
     public String toString() {
         return "[feed id:" + mFeedId + ", parent:" + mParentObjectId + "]";
@@ -17,12 +17,9 @@
 package mobisocial.socialkit.musubi;
 
 import mobisocial.socialkit.User;
-import mobisocial.socialkit.musubi.Musubi.DbThing;
 import android.content.Context;
 import android.database.Cursor;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.util.Log;
 
 /**
@@ -74,30 +71,28 @@ public class DbIdentity implements User {
     static DbIdentity fromStandardCursor(Context context, Cursor c) {
         sLatestContext = context;
         long theId = c.getLong(identityId);
-        byte[] idHash = c.getBlob(id_hash);
-        String theIdString = MusubiUtil.convertToHex(idHash);
+        PrincipalId thePrincipal = PrincipalId.wrap(c.getBlob(id_hash));
         String theName = c.getString(name);
         boolean theOwned = c.getInt(owned) == 1;
         boolean theClaimed = c.getInt(claimed) == 1;
         boolean theBlocked = c.getInt(blocked) == 1;
         boolean theWhitelisted = c.getInt(whitelisted) == 1;
         // theUgly
-        return new DbIdentity(context, theName, theId, theIdString, theOwned, theClaimed,
+        return new DbIdentity(context, theName, theId, thePrincipal, theOwned, theClaimed,
                 theWhitelisted, theBlocked);
         
     }
 
     private static Context sLatestContext;
     private final long mLocalId;
-    private final String mId;
+    private final PrincipalId mId;
     private final String mName;
     private final boolean mOwned;
     private final boolean mClaimed;
     private final boolean mWhitelisted;
     private final boolean mBlocked;
-    private Bitmap mPicture;
 
-    DbIdentity(Context context, String name, long localId, String personId, boolean owned,
+    DbIdentity(Context context, String name, long localId, PrincipalId personId, boolean owned,
             boolean claimed, boolean whitelisted, boolean blocked) {
         sLatestContext = context.getApplicationContext();
         mName = name;
@@ -110,8 +105,16 @@ public class DbIdentity implements User {
         mBlocked = blocked;
     }
 
+    /**
+     * Returns this user's principal as a hex string. Prefer
+     * {@link #getPrincipalId()} for comparisons and as a map key.
+     */
     @Override
     public String getId() {
+        return mId.toHex();
+    }
+
+    public PrincipalId getPrincipalId() {
         return mId;
     }
 
@@ -148,23 +151,38 @@ public class DbIdentity implements User {
         return mWhitelisted;
     }
 
+    /**
+     * Returns this user's thumbnail at full size, decoding it on the calling
+     * thread unless it is already cached. Prefer
+     * {@link #getPicture(ThumbnailCache.Callback)} on the UI thread.
+     */
     public Bitmap getPicture() {
-        if (mPicture != null) {
-            return mPicture;
-        }
-
-        Uri uri = Musubi.uriForItem(DbThing.IDENTITY, mLocalId);
-        String[] projection = new String[] { DbIdentity.COL_THUMBNAIL };
-        Cursor c = sLatestContext.getContentResolver().query(uri, projection, null, null, null);
-        try {
-            if (c.moveToFirst()) {
-                byte[] thumbnail = c.getBlob(0);
-                mPicture = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length);
-            }
-        } finally {
-            c.close();
-        }
-        return mPicture;
+        return getPicture(0, 0);
+    }
+
+    /**
+     * Returns this user's thumbnail, downsampled to no smaller than the
+     * given size, decoding it on the calling thread unless it is cached.
+     */
+    public Bitmap getPicture(int reqWidth, int reqHeight) {
+        return Musubi.getThumbnailCache().get(sLatestContext, mLocalId, reqWidth, reqHeight);
+    }
+
+    /**
+     * Loads this user's thumbnail in the background and delivers it to the
+     * callback on the main thread.
+     */
+    public void getPicture(ThumbnailCache.Callback callback) {
+        getPicture(0, 0, callback);
+    }
+
+    /**
+     * Loads this user's thumbnail in the background, downsampled to no
+     * smaller than the given size, and delivers it to the callback on the
+     * main thread.
+     */
+    public void getPicture(int reqWidth, int reqHeight, ThumbnailCache.Callback callback) {
+        Musubi.getThumbnailCache().load(sLatestContext, this, reqWidth, reqHeight, callback);
     }
 
     @Override
@@ -16,17 +16,24 @@
 
 package mobisocial.socialkit.musubi;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.lang.ref.SoftReference;
 
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.SignedObj;
-import mobisocial.socialkit.musubi.Musubi.DbThing;
+import mobisocial.socialkit.musubi.multiplayer.FeedRenderable;
+import mobisocial.socialkit.obj.AppStateObj;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.util.Log;
 
 /**
  * A SignedObj implementation that is backed by a database.
@@ -38,11 +45,9 @@ public class DbObj implements SignedObj {
     private final Long mParentId;
     private final long mLocalId;
     private final long mSenderId;
-    private final Uri mFeedUri;
+    private final long mFeedId;
 
     private final String mType;
-    private final JSONObject mJson;
-    private final byte[] mRaw;
     private final Integer mIntKey;
     private final String mName;
 
@@ -70,9 +75,88 @@ public class DbObj implements SignedObj {
     public static final String COL_LAST_MODIFIED_TIMESTAMP = "last_modified_timestamp";
     public static final String COL_RENDERABLE = "renderable";
 
+    /**
+     * Named sets of object columns. Queries should use the narrowest set
+     * covering the fields they read. Objects decoded from a partial
+     * projection throw IllegalStateException when a missing header field
+     * is read, and fetch missing json or raw payloads by local id.
+     */
+    public enum Projection {
+        /**
+         * The columns that describe an object, without its json or raw payload.
+         */
+        HEADER(COL_ID, COL_APP_ID, COL_TYPE, COL_STRING_KEY, COL_IDENTITY_ID,
+                COL_UNIVERSAL_HASH, COL_FEED_ID, COL_INT_KEY, COL_TIMESTAMP, COL_PARENT_ID),
+        /**
+         * The columns read by app state machines: type, keys and json.
+         */
+        STATE(COL_ID, COL_TYPE, COL_STRING_KEY, COL_FEED_ID, COL_INT_KEY, COL_PARENT_ID,
+                COL_JSON),
+        /**
+         * The header columns and json, leaving the raw payload to be fetched
+         * on demand.
+         */
+        DEFAULT(COL_ID, COL_APP_ID, COL_TYPE, COL_STRING_KEY, COL_IDENTITY_ID,
+                COL_UNIVERSAL_HASH, COL_FEED_ID, COL_INT_KEY, COL_TIMESTAMP, COL_PARENT_ID,
+                COL_JSON),
+        /**
+         * Every column read by SocialKit, including the raw payload.
+         */
+        FULL(COL_ID, COL_APP_ID, COL_TYPE, COL_STRING_KEY, COL_IDENTITY_ID,
+                COL_UNIVERSAL_HASH, COL_FEED_ID, COL_INT_KEY, COL_TIMESTAMP, COL_PARENT_ID,
+                COL_JSON, COL_RAW),
+        /**
+         * The default columns, plus the sender's identity joined in by the
+         * provider. Objects decoded from such a cursor carry their sender,
+         * so {@link DbObj#getSender()} makes no query.
+         */
+        WITH_SENDER(COL_ID, COL_APP_ID, COL_TYPE, COL_STRING_KEY, COL_IDENTITY_ID,
+                COL_UNIVERSAL_HASH, COL_FEED_ID, COL_INT_KEY, COL_TIMESTAMP, COL_PARENT_ID,
+                COL_JSON, DbIdentity.COL_NAME, DbIdentity.COL_ID_HASH, DbIdentity.COL_OWNED,
+                DbIdentity.COL_CLAIMED, DbIdentity.COL_BLOCKED, DbIdentity.COL_WHITELISTED);
+
+        private final String[] mColumns;
+
+        private Projection(String... columns) {
+            mColumns = columns;
+        }
+
+        /**
+         * Returns the columns of this set. The array is shared and must not
+         * be modified.
+         */
+        public String[] getColumns() {
+            return mColumns;
+        }
+    }
 
-    // Lazy loaded.
-    private SoftReference<DbIdentity> mSenderReference;
+    // Header fields that may be left out of a projection.
+    static final int FIELD_ID = 1;
+    static final int FIELD_APP_ID = 1 << 1;
+    static final int FIELD_TYPE = 1 << 2;
+    static final int FIELD_STRING_KEY = 1 << 3;
+    static final int FIELD_SENDER = 1 << 4;
+    static final int FIELD_HASH = 1 << 5;
+    static final int FIELD_FEED = 1 << 6;
+    static final int FIELD_INT_KEY = 1 << 7;
+    static final int FIELD_TIMESTAMP = 1 << 8;
+    static final int FIELD_PARENT = 1 << 9;
+
+    private final int mMissingFields;
+
+    // Payloads, decoded or fetched by local id on first access.
+    private byte[] mEncodedJson;
+    private boolean mJsonFetched;
+    private JSONObject mJson;
+    private boolean mJsonParsed;
+    private byte[] mRaw;
+    private boolean mRawFetched;
+
+    // The cache sharing this object, told when a payload is loaded.
+    private volatile ObjCache mCache;
+
+    // Lazy loaded, unless the sender was joined into the query.
+    private volatile DbIdentity mSender;
     private SoftReference<DbFeed> mContainingFeed;
 
     /**
@@ -80,55 +164,221 @@ public class DbObj implements SignedObj {
      */
     public DbObj(Musubi musubi, String appId, long feedId, Long parentId, long senderId, long localId, String type, JSONObject json,
             byte[] raw, Integer intKey, String stringKey, long timestamp, byte[] hash) {
+        this(musubi, appId, feedId, parentId, senderId, localId, type, null, true, raw, true,
+                intKey, stringKey, timestamp, hash, 0);
+        mJson = json;
+        mJsonParsed = true;
+    }
+
+    /**
+     * Creates an object whose json is decoded from encodedJson on first use.
+     * Payloads that were not fetched with the rest of the object are queried
+     * by local id when first requested. Header fields flagged in
+     * missingFields throw when read.
+     */
+    DbObj(Musubi musubi, String appId, long feedId, Long parentId, long senderId, long localId,
+            String type, byte[] encodedJson, boolean jsonFetched, byte[] raw, boolean rawFetched,
+            Integer intKey, String stringKey, long timestamp, byte[] hash, int missingFields) {
         mMusubi = musubi;
         mAppId = appId;
         mType = type;
         mName = stringKey;
-        mJson = json;
+        mEncodedJson = encodedJson;
+        mJsonFetched = jsonFetched;
         mLocalId = localId;
         mParentId = parentId;
         mUniversalHash = hash;
         mRaw = raw;
+        mRawFetched = rawFetched;
         mSenderId = senderId;
         mIntKey = intKey;
         mTimestamp = timestamp;
-        mFeedUri = DbFeed.uriForId(feedId);
+        mFeedId = feedId;
+        mMissingFields = missingFields;
+    }
+
+    private void checkLoaded(int field, String column) {
+        if ((mMissingFields & field) != 0) {
+            throw new IllegalStateException("Obj was loaded without column " + column);
+        }
     }
 
     public long getSenderId() {
+        checkLoaded(FIELD_SENDER, COL_IDENTITY_ID);
         return mSenderId;
     }
 
     @Override
     public String getType() {
+        checkLoaded(FIELD_TYPE, COL_TYPE);
         return mType;
     }
 
+    /**
+     * Returns this object's json. Objects from {@link Musubi#objForId(long)}
+     * are shared through {@link ObjCache}, so the json must not be modified.
+     */
     @Override
     public JSONObject getJson() {
-        return mJson;
+        JSONObject json;
+        boolean loaded = false;
+        synchronized (this) {
+            if (!mJsonParsed) {
+                // Posted with ObjCodec.BINARY, the raw payload holds the json
+                // too, and is cheaper to decode than the text.
+                if (mRaw != null) {
+                    mJson = BinaryObjCodec.decodeRaw(mRaw);
+                }
+                if (mJson == null && !mJsonFetched) {
+                    Cursor c = queryPayload(COL_JSON);
+                    if (c != null) {
+                        try {
+                            mEncodedJson = c.getBlob(0);
+                        } finally {
+                            c.close();
+                        }
+                    }
+                    mJsonFetched = true;
+                }
+                if (mJson == null) {
+                    try {
+                        mJson = ObjCodec.decode(mEncodedJson);
+                    } catch (JSONException e) {
+                        Log.e(Musubi.TAG, "Couldn't parse obj " + mLocalId, e);
+                    }
+                }
+                mEncodedJson = null;
+                mJsonParsed = true;
+                loaded = true;
+            }
+            json = mJson;
+        }
+        if (loaded) {
+            payloadLoaded();
+        }
+        return json;
     }
 
+    /**
+     * Returns this object's raw payload, which must not be modified.
+     */
     @Override
     public byte[] getRaw() {
-        return mRaw;
+        byte[] raw;
+        boolean loaded = false;
+        synchronized (this) {
+            if (!mRawFetched) {
+                Cursor c = queryPayload(COL_RAW);
+                if (c != null) {
+                    try {
+                        mRaw = c.getBlob(0);
+                    } finally {
+                        c.close();
+                    }
+                }
+                mRawFetched = true;
+                loaded = true;
+            }
+            raw = mRaw;
+        }
+        if (loaded) {
+            payloadLoaded();
+        }
+        return raw;
+    }
+
+    void setCache(ObjCache cache) {
+        mCache = cache;
+    }
+
+    /**
+     * Lets the cache holding this object account for a loaded payload.
+     * Called without this object's lock, which the cache takes to measure.
+     */
+    private void payloadLoaded() {
+        ObjCache cache = mCache;
+        if (cache != null) {
+            cache.resize(this);
+        }
+    }
+
+    /**
+     * Returns a rough estimate of the memory held by this object, counting
+     * its payloads in their current form.
+     */
+    synchronized long estimateSize() {
+        long size = 128;
+        if (mEncodedJson != null) {
+            size += mEncodedJson.length;
+        } else if (mJson != null) {
+            // Allow a modest cost per top-level field of parsed json.
+            size += 64 * mJson.length();
+        }
+        if (mRaw != null) {
+            size += mRaw.length;
+        }
+        return size;
+    }
+
+    /**
+     * Opens a stream over this object's raw payload. Unless the payload has
+     * already been loaded, it is read from the content provider in chunks
+     * rather than held in memory as a single array.
+     */
+    public InputStream openRawStream() throws IOException {
+        synchronized (this) {
+            if (mRawFetched) {
+                return (mRaw == null) ? null : new ByteArrayInputStream(mRaw);
+            }
+        }
+        try {
+            return mMusubi.getContext().getContentResolver().openInputStream(getUri());
+        } catch (FileNotFoundException e) {
+            Log.w(Musubi.TAG, "No raw stream for " + getUri() + ", loading in memory.");
+            byte[] raw = getRaw();
+            return (raw == null) ? null : new ByteArrayInputStream(raw);
+        }
+    }
+
+    /**
+     * Queries a single payload column of this object by its local id.
+     * Returns a cursor positioned on a non-null value, or null.
+     */
+    private Cursor queryPayload(String column) {
+        if ((mMissingFields & FIELD_ID) != 0) {
+            throw new IllegalStateException("Obj was loaded without columns " + column
+                    + " and " + COL_ID);
+        }
+        String[] projection = new String[] { column };
+        String selection = COL_ID + " = ?";
+        String[] selectionArgs = new String[] { Long.toString(mLocalId) };
+        Cursor c = mMusubi.getContext().getContentResolver().query(OBJ_URI, projection,
+                selection, selectionArgs, null);
+        if (c != null && (!c.moveToFirst() || c.isNull(0))) {
+            c.close();
+            return null;
+        }
+        return c;
     }
 
     @Override
     public Integer getIntKey() {
+        checkLoaded(FIELD_INT_KEY, COL_INT_KEY);
         return mIntKey;
     }
 
     @Override
     public String getStringKey() {
+        checkLoaded(FIELD_STRING_KEY, COL_STRING_KEY);
         return mName;
     }
     
     public String getName() {
-    	return mName;
+        return getStringKey();
     }
 
     public Long getParentId() {
+        checkLoaded(FIELD_PARENT, COL_PARENT_ID);
         return mParentId;
     }
 
@@ -141,7 +391,8 @@ public class DbObj implements SignedObj {
             f = mContainingFeed.get();
         }
         if (f == null) {
-            f = mMusubi.getFeed(mFeedUri);
+            checkLoaded(FIELD_FEED, COL_FEED_ID);
+            f = mMusubi.getFeed(DbFeed.uriForId(mFeedId));
             mContainingFeed = new SoftReference<DbFeed>(f);
         }
         return f;
@@ -151,19 +402,23 @@ public class DbObj implements SignedObj {
      * Returns the subfeed that has this object as its head.
      */
     public DbFeed getSubfeed() {
-        Uri subfeedUri = mFeedUri.buildUpon()
+        checkLoaded(FIELD_FEED, COL_FEED_ID);
+        checkLoaded(FIELD_ID, COL_ID);
+        Uri subfeedUri = DbFeed.uriForId(mFeedId).buildUpon()
                 .appendQueryParameter(DbObj.COL_PARENT_ID, String.valueOf(mLocalId)).build();
         return mMusubi.getFeed(subfeedUri);
     }
 
     @Override
     public long getHash() {
+        checkLoaded(FIELD_HASH, COL_UNIVERSAL_HASH);
     	if(mUniversalHash == null)
     		return 0;
 		return MusubiUtil.shortHash(mUniversalHash);
     }
 
     public String getUniversalHashString() {
+        checkLoaded(FIELD_HASH, COL_UNIVERSAL_HASH);
     	if(mUniversalHash == null)
     		return null;
 		return MusubiUtil.convertToHex(mUniversalHash);
@@ -173,48 +428,37 @@ public class DbObj implements SignedObj {
      * Returns the database's local id for this Obj.
      */
     public long getLocalId() {
+        checkLoaded(FIELD_ID, COL_ID);
         return mLocalId;
     }
 
     @Override
     public DbIdentity getSender() {
-        DbIdentity user = null;
-        if (mSenderReference != null) {
-            user = mSenderReference.get();
-        }
+        DbIdentity user = mSender;
         if (user == null) {
-            Uri uri = Musubi.uriForItem(DbThing.IDENTITY, mSenderId);
-            String selection = null;
-            String[] selectionArgs = null;
-            String sortOrder = null;
-        	
-    		Cursor c = mMusubi.getContext().getContentResolver().query(uri,
-    		        DbIdentity.COLUMNS, selection, selectionArgs, sortOrder);
-    		try {
-    		    if (!c.moveToFirst()) {
-    		        return null;
-    		    }
-
-    		    user = DbIdentity.fromStandardCursor(mMusubi.getContext(), c);
-    		    mSenderReference = new SoftReference<DbIdentity>(user);
-    		} finally {
-    		    c.close();
-    		}
+            user = mMusubi.userForLocalId(null, getSenderId());
+            mSender = user;
         }
         return user;
     }
 
+    void setSender(DbIdentity sender) {
+        mSender = sender;
+    }
+
     public Uri getUri() {
         // TODO: no more long in uri! use proper hex encoding
-        return OBJ_URI.buildUpon().appendPath(Long.toString(mLocalId)).build();
+        return OBJ_URI.buildUpon().appendPath(Long.toString(getLocalId())).build();
     }
 
     @Override
     public String getAppId() {
+        checkLoaded(FIELD_APP_ID, COL_APP_ID);
         return mAppId;
     }
 
     public long getTimestamp() {
+        checkLoaded(FIELD_TIMESTAMP, COL_TIMESTAMP);
         return mTimestamp;
     }
 
@@ -223,13 +467,33 @@ public class DbObj implements SignedObj {
      * for insertion into a SocialDb feed.
      */
     public static ContentValues toContentValues(Uri feedUri, Long parentObjId, Obj obj) {
+        return toContentValues(feedUri, parentObjId, obj, ObjCodec.JSON);
+    }
+
+    /**
+     * Prepares ContentValues for insertion into a SocialDb feed, encoding
+     * the obj's json with the given codec.
+     */
+    public static ContentValues toContentValues(Uri feedUri, Long parentObjId, Obj obj,
+            ObjCodec codec) {
         ContentValues values = new ContentValues();
         values.put(DbObj.COL_TYPE, obj.getType());
         if (obj.getStringKey() != null) {
             values.put(DbObj.COL_STRING_KEY, obj.getStringKey());
         }
-        if (obj.getJson() != null) {
-            values.put(DbObj.COL_JSON, obj.getJson().toString());
+        if (obj instanceof AppStateObj) {
+            // Merge the renderable over the state as it is encoded.
+            AppStateObj state = (AppStateObj) obj;
+            JSONObject data = state.getAppData();
+            FeedRenderable renderable = state.getAppRenderable();
+            if (renderable != null) {
+                codec.putJson(values, (data == null) ? new JSONObject() : data,
+                        renderable.toJson());
+            } else if (data != null) {
+                codec.putJson(values, data);
+            }
+        } else if (obj.getJson() != null) {
+            codec.putJson(values, obj.getJson());
         }
         if (obj.getIntKey() != null) {
             values.put(DbObj.COL_INT_KEY, obj.getIntKey());
@@ -251,6 +515,8 @@ public class DbObj implements SignedObj {
 
     @Override
     public String toString() {
-        return getUri().toString() + ", " + getType() + ", " + getJson();
+        // Without a local id, unfetched json cannot be loaded.
+        Object json = ((mMissingFields & FIELD_ID) != 0 && !mJsonFetched) ? null : getJson();
+        return OBJ_URI + "/" + mLocalId + ", " + mType + ", " + json;
     }
 }
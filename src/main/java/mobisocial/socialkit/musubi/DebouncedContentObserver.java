@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * A ContentObserver that refreshes off the main thread. Notifications are
+ * received on a background thread shared by all such observers and
+ * collected for a debounce window, after which a single {@link #query()}
+ * runs there. Its result is handed to {@link #deliver(Object)} on the
+ * callback executor, which runs on the main thread unless set otherwise.
+ * <p>
+ * Queries run one at a time, so results are delivered in the order they
+ * were read as long as the callback executor runs tasks in order.
+ */
+public abstract class DebouncedContentObserver<T> extends ContentObserver {
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    private static Handler sBackgroundHandler;
+
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            refresh();
+        }
+    };
+    private volatile Executor mCallbackExecutor;
+    private volatile long mDebounceMillis = DEFAULT_DEBOUNCE_MILLIS;
+
+    protected DebouncedContentObserver(Context context) {
+        super(getBackgroundHandler());
+        mCallbackExecutor = executorFor(context.getMainLooper());
+    }
+
+    /**
+     * Reads the observed content. Runs on the background thread.
+     */
+    protected abstract T query();
+
+    /**
+     * Handles the result of a query. Runs on the callback executor.
+     */
+    protected abstract void deliver(T result);
+
+    /**
+     * Sets the executor that results are delivered on.
+     */
+    public void setCallbackExecutor(Executor executor) {
+        if (executor == null) {
+            throw new NullPointerException("Executor is null");
+        }
+        mCallbackExecutor = executor;
+    }
+
+    /**
+     * Sets how long to collect notifications for before querying.
+     * Zero queries as soon as the background thread is free.
+     */
+    public void setDebounceMillis(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Negative debounce " + millis);
+        }
+        mDebounceMillis = millis;
+    }
+
+    @Override
+    public void onChange(boolean selfChange) {
+        // Later notifications in the window are covered by the pending
+        // refresh, which reads the content only once it runs.
+        if (mScheduled.compareAndSet(false, true)) {
+            getBackgroundHandler().postDelayed(mRefresh, mDebounceMillis);
+        }
+    }
+
+    /**
+     * Runs a query on the background thread, in order with refreshes, and
+     * returns its result without delivering it. For callers that need the
+     * content at once.
+     */
+    public T queryAndWait() {
+        Handler handler = getBackgroundHandler();
+        if (Looper.myLooper() == handler.getLooper()) {
+            return query();
+        }
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            @Override
+            public T call() {
+                return query();
+            }
+        });
+        handler.post(task);
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void refresh() {
+        // Cleared first, so a change made during the query schedules another.
+        mScheduled.set(false);
+        final T result;
+        try {
+            result = query();
+        } catch (RuntimeException e) {
+            Log.e(Musubi.TAG, "Error refreshing observed content", e);
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                deliver(result);
+            }
+        });
+    }
+
+    /**
+     * Runs a task on the shared background thread, in order with queries.
+     */
+    static void post(Runnable task) {
+        getBackgroundHandler().post(task);
+    }
+
+    /**
+     * Returns an executor that runs tasks on the given looper.
+     */
+    public static Executor executorFor(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    private static synchronized Handler getBackgroundHandler() {
+        if (sBackgroundHandler == null) {
+            HandlerThread thread = new HandlerThread("SocialKitObservers",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            sBackgroundHandler = new Handler(thread.getLooper());
+        }
+        return sBackgroundHandler;
+    }
+}
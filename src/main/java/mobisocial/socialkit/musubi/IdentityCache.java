@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+/**
+ * A thread-safe cache of identities, keyed by local id and by principal.
+ * Lookups never block. When full, entries are evicted in insertion order,
+ * except that entries read since they were last considered get a second
+ * chance. Entries are invalidated by changes to the identities table.
+ * Updates are serialized by a lock, so the two indexes and the eviction
+ * queue change together.
+ */
+public final class IdentityCache {
+    private static final int DEFAULT_MAX_ENTRIES = 256;
+
+    private final ConcurrentHashMap<Long, Entry> mByLocalId =
+            new ConcurrentHashMap<Long, Entry>();
+    private final ConcurrentHashMap<PrincipalId, Entry> mByPrincipal =
+            new ConcurrentHashMap<PrincipalId, Entry>();
+    private final ConcurrentLinkedQueue<Long> mEvictionQueue = new ConcurrentLinkedQueue<Long>();
+    private volatile int mMaxEntries = DEFAULT_MAX_ENTRIES;
+
+    // Held for every update; lookups don't take it.
+    private final Object mWriteLock = new Object();
+    // Advanced by every invalidation, so fills that raced one are dropped.
+    private volatile long mGeneration;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    /**
+     * Invalidates entries as identities change. Platforms that report the
+     * changed uri invalidate a single entry; older ones clear the cache.
+     */
+    final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            clear();
+        }
+
+        // Called in place of onChange(boolean) from API level 16.
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || uri.getPathSegments().size() < 2) {
+                clear();
+                return;
+            }
+            try {
+                remove(ContentUris.parseId(uri));
+            } catch (NumberFormatException e) {
+                clear();
+            }
+        }
+    };
+
+    IdentityCache() {
+    }
+
+    DbIdentity get(long localId) {
+        return hit(mByLocalId.get(localId));
+    }
+
+    DbIdentity getByPrincipal(PrincipalId principal) {
+        return hit(mByPrincipal.get(principal));
+    }
+
+    private DbIdentity hit(Entry entry) {
+        if (entry == null) {
+            mMisses.incrementAndGet();
+            return null;
+        }
+        mHits.incrementAndGet();
+        entry.referenced = true;
+        return entry.identity;
+    }
+
+    /**
+     * Returns the current generation, to be read before querying for
+     * identities that will be put in the cache.
+     */
+    long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches an identity read at the given generation, unless the cache
+     * was invalidated since.
+     */
+    void put(DbIdentity identity, long generation) {
+        synchronized (mWriteLock) {
+            if (generation != mGeneration) {
+                return;
+            }
+            Entry entry = new Entry(identity);
+            Entry old = mByLocalId.put(identity.getLocalId(), entry);
+            mByPrincipal.put(identity.getPrincipalId(), entry);
+            if (old == null) {
+                mEvictionQueue.offer(identity.getLocalId());
+                evict();
+            } else if (!old.identity.getPrincipalId().equals(identity.getPrincipalId())) {
+                mByPrincipal.remove(old.identity.getPrincipalId(), old);
+            }
+        }
+    }
+
+    void remove(long localId) {
+        synchronized (mWriteLock) {
+            mGeneration++;
+            Entry old = mByLocalId.remove(localId);
+            if (old != null) {
+                mByPrincipal.remove(old.identity.getPrincipalId(), old);
+                // Keeps the queue to one id per entry, however often refilled.
+                mEvictionQueue.remove(localId);
+            }
+        }
+    }
+
+    /**
+     * Empties the cache. Statistics are kept.
+     */
+    public void clear() {
+        synchronized (mWriteLock) {
+            mGeneration++;
+            mByLocalId.clear();
+            mByPrincipal.clear();
+            mEvictionQueue.clear();
+        }
+    }
+
+    // Called with mWriteLock held.
+    private void evict() {
+        while (mByLocalId.size() > mMaxEntries) {
+            Long candidate = mEvictionQueue.poll();
+            if (candidate == null) {
+                return;
+            }
+            Entry entry = mByLocalId.get(candidate);
+            if (entry == null) {
+                continue;
+            }
+            if (entry.referenced) {
+                entry.referenced = false;
+                mEvictionQueue.offer(candidate);
+                continue;
+            }
+            if (mByLocalId.remove(candidate, entry)) {
+                mByPrincipal.remove(entry.identity.getPrincipalId(), entry);
+                mEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of identities held, evicting as needed.
+     */
+    public void setMaxEntries(int maxEntries) {
+        synchronized (mWriteLock) {
+            mMaxEntries = maxEntries;
+            evict();
+        }
+    }
+
+    public int size() {
+        return mByLocalId.size();
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    /**
+     * Returns the fraction of lookups served from the cache.
+     */
+    public double getHitRate() {
+        long hits = mHits.get();
+        long total = hits + mMisses.get();
+        return (total == 0) ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "[identity cache size:" + size() + ", hits:" + mHits + ", misses:" + mMisses
+                + ", evictions:" + mEvictions + "]";
+    }
+
+    private static final class Entry {
+        final DbIdentity identity;
+        volatile boolean referenced;
+
+        Entry(DbIdentity identity) {
+            this.identity = identity;
+        }
+    }
+}
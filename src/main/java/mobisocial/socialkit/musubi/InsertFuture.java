@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import mobisocial.socialkit.Obj;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * The outcome of an object queued on the provider thread: the uri of the
+ * inserted object, or the reason it could not be inserted. An insertion
+ * can be cancelled until the provider thread takes it up.
+ */
+final class InsertFuture implements Future<Uri> {
+    private static final int PENDING = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int CANCELLED = 3;
+
+    private final Obj mObj;
+    private final DbFeed.PostCallback mCallback;
+    private int mState = PENDING;
+    private Uri mUri;
+    private Exception mError;
+
+    InsertFuture(Obj obj, DbFeed.PostCallback callback) {
+        mObj = obj;
+        mCallback = callback;
+    }
+
+    /**
+     * Claims the insertion for the provider thread. Returns false if it
+     * was cancelled.
+     */
+    synchronized boolean start() {
+        if (mState != PENDING) {
+            return false;
+        }
+        mState = RUNNING;
+        return true;
+    }
+
+    void set(Uri uri) {
+        synchronized (this) {
+            mUri = uri;
+            mState = DONE;
+            notifyAll();
+        }
+        if (mCallback != null) {
+            try {
+                mCallback.onObjPosted(mObj, uri);
+            } catch (RuntimeException e) {
+                Log.e(Musubi.TAG, "Error in post callback", e);
+            }
+        }
+    }
+
+    void setException(Exception error) {
+        synchronized (this) {
+            mError = error;
+            mState = DONE;
+            notifyAll();
+        }
+        if (mCallback != null) {
+            try {
+                mCallback.onPostFailed(mObj, error);
+            } catch (RuntimeException e) {
+                Log.e(Musubi.TAG, "Error in post callback", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+        if (mState != PENDING) {
+            return false;
+        }
+        mState = CANCELLED;
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState >= DONE;
+    }
+
+    @Override
+    public synchronized Uri get() throws InterruptedException, ExecutionException {
+        while (mState < DONE) {
+            wait();
+        }
+        return result();
+    }
+
+    @Override
+    public synchronized Uri get(long timeout, TimeUnit unit) throws InterruptedException,
+            ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState < DONE) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return result();
+    }
+
+    private Uri result() throws ExecutionException {
+        if (mState == CANCELLED) {
+            throw new CancellationException();
+        }
+        if (mError != null) {
+            throw new ExecutionException(mError);
+        }
+        return mUri;
+    }
+}
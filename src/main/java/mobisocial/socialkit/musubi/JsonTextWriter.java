@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Serializes json to text in a single pass over a buffer reused across
+ * calls on the same thread. An overlay object may be merged over the
+ * top-level fields as they are written, without copying either object.
+ */
+final class JsonTextWriter {
+    // Larger buffers are released after use rather than kept per thread.
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<JsonTextWriter> sWriter =
+            new ThreadLocal<JsonTextWriter>() {
+        @Override
+        protected JsonTextWriter initialValue() {
+            return new JsonTextWriter();
+        }
+    };
+
+    private final StringBuilder mOut = new StringBuilder(256);
+
+    private JsonTextWriter() {
+    }
+
+    /**
+     * Returns the text of json with the fields of overlay, which may be
+     * null, written in place of any fields of the same name.
+     */
+    static String write(JSONObject json, JSONObject overlay) {
+        JsonTextWriter w = sWriter.get();
+        StringBuilder out = w.mOut;
+        out.setLength(0);
+        w.writeObject(json, overlay);
+        String text = out.toString();
+        if (out.capacity() > MAX_RETAINED_CHARS) {
+            out.setLength(0);
+            out.trimToSize();
+        }
+        return text;
+    }
+
+    private void writeObject(JSONObject json, JSONObject overlay) {
+        StringBuilder out = mOut;
+        out.append('{');
+        boolean first = true;
+        Iterator<?> keys = json.keys();
+        while (keys.hasNext()) {
+            String key = (String) keys.next();
+            if (overlay != null && overlay.has(key)) {
+                continue;
+            }
+            if (!first) {
+                out.append(',');
+            }
+            first = false;
+            writeString(key);
+            out.append(':');
+            writeValue(json.opt(key));
+        }
+        if (overlay != null) {
+            keys = overlay.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                if (!first) {
+                    out.append(',');
+                }
+                first = false;
+                writeString(key);
+                out.append(':');
+                writeValue(overlay.opt(key));
+            }
+        }
+        out.append('}');
+    }
+
+    private void writeArray(JSONArray array) {
+        StringBuilder out = mOut;
+        out.append('[');
+        int length = array.length();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            writeValue(array.opt(i));
+        }
+        out.append(']');
+    }
+
+    private void writeValue(Object value) {
+        StringBuilder out = mOut;
+        if (value == null || value == JSONObject.NULL) {
+            out.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Boolean) {
+            out.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            out.append(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            try {
+                out.append(JSONObject.numberToString((Number) value));
+            } catch (JSONException e) {
+                throw new IllegalArgumentException(e);
+            }
+        } else if (value instanceof JSONObject) {
+            writeObject((JSONObject) value, null);
+        } else if (value instanceof JSONArray) {
+            writeArray((JSONArray) value);
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    private void writeString(String s) {
+        StringBuilder out = mOut;
+        out.append('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    out.append('\\').append(c);
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                case '\b':
+                    out.append("\\b");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\f':
+                    out.append("\\f");
+                    break;
+                default:
+                    // Line separators are valid json but not valid javascript.
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.append("\\u").append(HEX_DIGITS[c >> 12])
+                                .append(HEX_DIGITS[(c >> 8) & 0xf])
+                                .append(HEX_DIGITS[(c >> 4) & 0xf])
+                                .append(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
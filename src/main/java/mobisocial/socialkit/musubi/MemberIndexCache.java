@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+/**
+ * The members of recently used feeds, indexed by principal, shared by
+ * every {@link DbFeed} in the process. A single observer of the members
+ * table invalidates an index when its feed's membership changes.
+ */
+final class MemberIndexCache {
+    private static final int MAX_FEEDS = 32;
+
+    private final LinkedHashMap<Long, Map<PrincipalId, DbIdentity>> mIndexes =
+            new LinkedHashMap<Long, Map<PrincipalId, DbIdentity>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Long, Map<PrincipalId, DbIdentity>> eldest) {
+            return size() > MAX_FEEDS;
+        }
+    };
+
+    // Advanced by every invalidation, so indexes built across one are dropped.
+    private long mGeneration;
+
+    /**
+     * Invalidates indexes as memberships change. Platforms that report the
+     * changed uri invalidate a single feed; older ones clear the cache.
+     */
+    final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            clear();
+        }
+
+        // Called in place of onChange(boolean) from API level 16.
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || uri.getPathSegments().size() < 2) {
+                clear();
+                return;
+            }
+            try {
+                remove(ContentUris.parseId(uri));
+            } catch (NumberFormatException e) {
+                clear();
+            }
+        }
+    };
+
+    synchronized Map<PrincipalId, DbIdentity> get(long feedId) {
+        return mIndexes.get(feedId);
+    }
+
+    /**
+     * Returns the current generation, to be read before querying for the
+     * members of an index.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches an index built at the given generation, unless the cache was
+     * invalidated since.
+     */
+    synchronized void put(long feedId, Map<PrincipalId, DbIdentity> index, long generation) {
+        if (generation == mGeneration) {
+            mIndexes.put(feedId, index);
+        }
+    }
+
+    synchronized void remove(long feedId) {
+        mGeneration++;
+        mIndexes.remove(feedId);
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mIndexes.clear();
+    }
+}
@@ -16,27 +16,41 @@
 
 package mobisocial.socialkit.musubi;
 
-import java.util.LinkedHashMap;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
+import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.SQLClauseHelper;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import android.app.Activity;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.ContentObserver;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -56,12 +70,35 @@ public class Musubi {
 
     private final Context mContext;
     private final ContentProviderThread mContentProviderThread;
+    private final ObjCursorMapper mObjCursorMapper = new ObjCursorMapper(this);
     private DbFeed mFeed;
     private DbObj mObj;
 
+    /**
+     * Object columns fetched by id, without the raw payload.
+     */
+    private static final String[] OBJ_COLUMNS = DbObj.Projection.DEFAULT.getColumns();
+
+    /**
+     * Bound on the arguments of a single IN clause, well under SQLite's
+     * default limit of 999 host parameters per statement.
+     */
+    static final int MAX_IN_CLAUSE_ARGS = 500;
+
+    private static final int RAW_CHUNK_SIZE = 8192;
+
     private static final Uri CONTACTS_URI = Uri.parse("content://" + AUTHORITY + "/identities");
-    private static final LinkedHashMap<Long, DbIdentity> sUserCache = new UserCache();
-    private final ContentObserver mContactUpdateObserver;
+    private static final IdentityCache sUserCache = new IdentityCache();
+    private static final ObjCache sObjCache = new ObjCache();
+    private static final ThumbnailCache sThumbnailCache = new ThumbnailCache();
+    private static final MemberIndexCache sMemberIndexCache = new MemberIndexCache();
+    private static boolean sObservingProvider;
+
+    // The journal of pending posts, shared by every instance in the process.
+    private static volatile boolean sOutboxEnabled;
+    private static OutboxJournal sOutbox;
+    private static List<OutboxJournal.Record> sOutboxReplay;
+    private static boolean sOutboxReplayScheduled;
 
     public static boolean isMusubiInstalled(Context context) {
         try {
@@ -99,6 +136,19 @@ public class Musubi {
 
     public Musubi(Context context) {
         mContext = context.getApplicationContext();
+        synchronized (Musubi.class) {
+            if (!sObservingProvider) {
+                sObservingProvider = true;
+                mContext.getContentResolver().registerContentObserver(DbObj.OBJ_URI, true,
+                        sObjCache.mObserver);
+                mContext.getContentResolver().registerContentObserver(CONTACTS_URI, true,
+                        sUserCache.mObserver);
+                mContext.getContentResolver().registerContentObserver(CONTACTS_URI, true,
+                        sThumbnailCache.mObserver);
+                mContext.getContentResolver().registerContentObserver(
+                        uriForDir(DbThing.MEMBER), true, sMemberIndexCache.mObserver);
+            }
+        }
         if (context instanceof Activity) {
             setDataFromIntent(((Activity) context).getIntent());
         }
@@ -115,15 +165,91 @@ public class Musubi {
                 }
             }
         }
+        synchronized (Musubi.class) {
+            if (!sOutboxReplayScheduled) {
+                sOutboxReplayScheduled = true;
+                mContentProviderThread.mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mContentProviderThread.replayOutbox();
+                    }
+                });
+            }
+        }
+    }
 
-        mContactUpdateObserver = new ContentObserver(mContentProviderThread.mHandler) {
-            @Override
-            public void onChange(boolean selfChange) {
-                sUserCache.clear();
+    /**
+     * Journals objects posted asynchronously to local storage until the
+     * provider has taken them, so that posts survive the process being
+     * killed. Journaled posts left over from an earlier process are replayed
+     * when the first Musubi instance of a process is created. Objects posted
+     * with a raw stream are not journaled. A post whose failure is reported
+     * through its {@link InsertFuture} is left to the caller to retry; other
+     * failed posts are replayed up to three times before being dropped. Off
+     * by default.
+     */
+    public static void setOutboxEnabled(boolean enabled) {
+        sOutboxEnabled = enabled;
+    }
+
+    /**
+     * Returns the process's outbox journal, opening it if needed, or null if
+     * it can't be opened.
+     */
+    private static synchronized OutboxJournal openOutbox(Context context) {
+        if (sOutbox == null) {
+            File file = new File(context.getFilesDir(), OutboxJournal.FILE_NAME);
+            OutboxJournal journal = new OutboxJournal(file);
+            try {
+                sOutboxReplay = journal.open();
+                sOutbox = journal;
+                if (journal.getDiscardedBytes() > 0) {
+                    Log.w(TAG, "Discarded " + journal.getDiscardedBytes()
+                            + " torn bytes from outbox " + file);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't open outbox " + file, e);
             }
-        };
-        mContext.getContentResolver().registerContentObserver(CONTACTS_URI, true,
-                mContactUpdateObserver);
+        }
+        return sOutbox;
+    }
+
+    private static synchronized List<OutboxJournal.Record> takeOutboxReplay() {
+        List<OutboxJournal.Record> replay = sOutboxReplay;
+        sOutboxReplay = null;
+        return replay;
+    }
+
+    private static synchronized OutboxJournal getOutbox() {
+        return sOutbox;
+    }
+
+    static MemberIndexCache getMemberIndexCache() {
+        return sMemberIndexCache;
+    }
+
+    /**
+     * Returns the process-wide cache of objects resolved by id, for tuning
+     * its bounds and reading its statistics.
+     */
+    public static ObjCache getObjCache() {
+        return sObjCache;
+    }
+
+    /**
+     * Returns the process-wide cache of identities, for tuning its size and
+     * reading its statistics.
+     */
+    public static IdentityCache getIdentityCache() {
+        return sUserCache;
+    }
+
+    /**
+     * Returns the process-wide cache of decoded identity thumbnails, for
+     * tuning its memory budget and reading its statistics.
+     */
+    public static ThumbnailCache getThumbnailCache() {
+        return sThumbnailCache;
     }
 
     ContentProviderThread getContentProviderThread() {
@@ -183,116 +309,36 @@ public class Musubi {
         return mObj;
     }
 
+    /**
+     * Returns the object at the cursor's current position. To decode many
+     * rows of the same cursor, see {@link ObjCursorMapper}.
+     */
     public DbObj objForCursor(Cursor cursor) {
-        try {
-            long localId = -1;
-            String appId = null;
-            String type = null;
-            String name = null;
-            JSONObject json = null;
-            long senderId = -1;
-            byte[] hash = null;
-            long feedId = -1;
-            Integer intKey = null;
-            long timestamp = -1;
-            Long parentId = null;
-
-            try {
-                localId = cursor.getLong(cursor.getColumnIndexOrThrow(DbObj.COL_ID));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                appId = cursor.getString(cursor.getColumnIndexOrThrow(DbObj.COL_APP_ID));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                type = cursor.getString(cursor.getColumnIndexOrThrow(DbObj.COL_TYPE));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                name = cursor.getString(cursor.getColumnIndexOrThrow(DbObj.COL_STRING_KEY));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                json = new JSONObject(
-                        cursor.getString(cursor.getColumnIndexOrThrow(DbObj.COL_JSON)));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                senderId = cursor.getLong(cursor.getColumnIndexOrThrow(DbObj.COL_IDENTITY_ID));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                hash = cursor.getBlob(cursor.getColumnIndexOrThrow(DbObj.COL_UNIVERSAL_HASH));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                feedId = cursor.getLong(cursor.getColumnIndexOrThrow(DbObj.COL_FEED_ID));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                intKey = cursor.getInt(cursor.getColumnIndexOrThrow(DbObj.COL_INT_KEY));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                timestamp = cursor.getLong(cursor.getColumnIndexOrThrow(DbObj.COL_TIMESTAMP));
-            } catch (IllegalArgumentException e) {
-            }
-            try {
-                int pIndex = cursor.getColumnIndexOrThrow(DbObj.COL_PARENT_ID);
-                if (!cursor.isNull(pIndex)) {
-                    parentId = cursor.getLong(pIndex);
-                }
-            } catch (IllegalArgumentException e) {
-            }
-
-            // Don't require raw field.
-            final byte[] raw;
-            int rawIndex = cursor.getColumnIndex(DbObj.COL_RAW);
-            if (rawIndex == -1 || cursor.isNull(rawIndex)) {
-                raw = null;
-            } else {
-                raw = cursor.getBlob(cursor.getColumnIndexOrThrow(DbObj.COL_RAW));
-            }
-            return new DbObj(this, appId, feedId, parentId, senderId, localId, type, json, raw, intKey, name,
-                    timestamp, hash);
-        } catch (JSONException e) {
-            Log.e(TAG, "Couldn't parse obj.", e);
-            return null;
-        }
+        return mObjCursorMapper.objForCursor(cursor);
     }
 
+    /**
+     * Returns the object with the given local id. Its raw payload is
+     * fetched on first use of {@link DbObj#getRaw()}. Objects are served
+     * from {@link #getObjCache()} when possible, so they are shared and
+     * must not be modified.
+     */
     public DbObj objForId(long localId) {
-        Cursor cursor = mContext.getContentResolver().query(
-                DbObj.OBJ_URI,
-                new String[] {
-                        DbObj.COL_APP_ID, DbObj.COL_TYPE, DbObj.COL_STRING_KEY, DbObj.COL_JSON,
-                        DbObj.COL_RAW, DbObj.COL_IDENTITY_ID, DbObj.COL_UNIVERSAL_HASH,
-                        DbObj.COL_FEED_ID, DbObj.COL_INT_KEY, DbObj.COL_TIMESTAMP, DbObj.COL_PARENT_ID
-                }, DbObj.COL_ID + " = ?", new String[] { String.valueOf(localId) }, null);
+        DbObj cached = sObjCache.get(localId);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = sObjCache.generation();
+        Cursor cursor = mContext.getContentResolver().query(DbObj.OBJ_URI, OBJ_COLUMNS,
+                DbObj.COL_ID + " = ?", new String[] { String.valueOf(localId) }, null);
         try {
             if (cursor == null || !cursor.moveToFirst()) {
                 Log.w(TAG, "Obj " + localId + " not found.");
                 return null;
             }
-
-            final String appId = cursor.getString(0);
-            final String type = cursor.getString(1);
-            final String name = cursor.getString(2);
-            final JSONObject json = new JSONObject(cursor.getString(3));
-            final byte[] raw = cursor.isNull(4) ? null : cursor.getBlob(4);
-            final long senderId = cursor.getLong(5);
-            final byte[] hash = cursor.getBlob(6);
-            final long feedId = cursor.getLong(7);
-            final Integer intKey = cursor.isNull(8) ? null : cursor.getInt(8);
-            final long timestamp = cursor.getLong(9);
-            Long parentId = cursor.isNull(10) ? null : cursor.getLong(10);
-
-            return new DbObj(this, appId, feedId, parentId, senderId, localId, type, json, raw,
-                    intKey, name, timestamp, hash);
-        } catch (JSONException e) {
-            Log.e(TAG, "Couldn't parse obj.", e);
-            return null;
+            DbObj obj = mObjCursorMapper.objForCursor(cursor);
+            sObjCache.put(obj, generation);
+            return obj;
         } finally {
             if (cursor != null) {
                 cursor.close();
@@ -300,6 +346,81 @@ public class Musubi {
         }
     }
 
+    /**
+     * Returns the objects with the given local ids, in the order requested.
+     * Ids are resolved in batches of IN clauses rather than one query each.
+     * The returned list has an entry for every id; ids with no matching
+     * object are logged and their entries are null. As with
+     * {@link #objForId(long)}, the objects must not be modified.
+     */
+    public List<DbObj> objsForIds(long... localIds) {
+        return objsForIds(localIds, null);
+    }
+
+    /**
+     * Returns the objects with the given local ids as
+     * {@link #objsForIds(long...)} does, adding the ids that weren't found,
+     * including any the provider couldn't be queried for, to the given
+     * collection if it isn't null.
+     */
+    public List<DbObj> objsForIds(long[] localIds, Collection<Long> missingIds) {
+        Map<Long, DbObj> found = new HashMap<Long, DbObj>(localIds.length * 2);
+        long[] uncached = new long[localIds.length];
+        int uncachedCount = 0;
+        for (long id : localIds) {
+            DbObj cached = sObjCache.get(id);
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                uncached[uncachedCount++] = id;
+            }
+        }
+
+        for (int start = 0; start < uncachedCount; start += MAX_IN_CLAUSE_ARGS) {
+            int end = Math.min(uncachedCount, start + MAX_IN_CLAUSE_ARGS);
+            StringBuilder selection = new StringBuilder(DbObj.COL_ID).append(" IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append((i == start) ? "?" : ",?");
+                selectionArgs[i - start] = Long.toString(uncached[i]);
+            }
+            selection.append(")");
+            long generation = sObjCache.generation();
+            Cursor cursor = mContext.getContentResolver().query(DbObj.OBJ_URI, OBJ_COLUMNS,
+                    selection.toString(), selectionArgs, null);
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    DbObj obj = mObjCursorMapper.objForCursor(cursor);
+                    found.put(obj.getLocalId(), obj);
+                    sObjCache.put(obj, generation);
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        List<DbObj> objs = new ArrayList<DbObj>(localIds.length);
+        StringBuilder missing = null;
+        for (long id : localIds) {
+            DbObj obj = found.get(id);
+            if (obj == null) {
+                missing = (missing == null) ? new StringBuilder() : missing.append(", ");
+                missing.append(id);
+                if (missingIds != null) {
+                    missingIds.add(id);
+                }
+            }
+            objs.add(obj);
+        }
+        if (missing != null) {
+            Log.w(TAG, "Objs not found: " + missing);
+        }
+        return objs;
+    }
+
     public DbObj objForUri(Uri objUri) {
         try {
             return objForId(ContentUris.parseId(objUri));
@@ -310,8 +431,20 @@ public class Musubi {
     }
 
     public DbIdentity userForGlobalId(Uri feedUri, String personId) {
-        byte[] idHash = MusubiUtil.convertToByteArray(personId);
-        long shortHash = MusubiUtil.shortHash(idHash);
+        return userForPrincipal(feedUri, PrincipalId.fromHex(personId));
+    }
+
+    /**
+     * Returns the identity with the given principal among the members of
+     * the given feed. An identity already in the process's identity cache is
+     * returned without querying the feed's members.
+     */
+    public DbIdentity userForPrincipal(Uri feedUri, PrincipalId principal) {
+        DbIdentity cached = sUserCache.getByPrincipal(principal);
+        if (cached != null) {
+            return cached;
+        }
+        long shortHash = principal.getShortHash();
 
         Uri uri = new Uri.Builder().scheme("content").authority(Musubi.AUTHORITY)
                 .appendPath(DbThing.MEMBER.toString()).appendPath(feedUri.getLastPathSegment())
@@ -319,12 +452,14 @@ public class Musubi {
         String selection = DbIdentity.COL_ID_SHORT_HASH + " = ?";
         String[] selectionArgs = new String[] { Long.toString(shortHash) };
         String sortOrder = null;
+        long generation = sUserCache.generation();
         Cursor c = mContext.getContentResolver().query(uri, DbIdentity.COLUMNS, selection,
                 selectionArgs, sortOrder);
         try {
             while (c != null && c.moveToNext()) {
                 DbIdentity mate = DbIdentity.fromStandardCursor(mContext, c);
-                if (mate.getId().equals(personId)) {
+                sUserCache.put(mate, generation);
+                if (mate.getPrincipalId().equals(principal)) {
                     return mate;
                 }
             }
@@ -350,10 +485,11 @@ public class Musubi {
             feedName = "friend";
         }
         Uri uri = uriForItem(DbThing.IDENTITY, localId);
-        String[] projection = { DbIdentity.COL_ID_HASH, DbIdentity.COL_NAME };
+        String[] projection = DbIdentity.COLUMNS;
         String selection = DbIdentity.COL_IDENTITY_ID + " = ?";
         String[] selectionArgs = new String[] { Long.toString(localId) };
         String sortOrder = null;
+        long generation = sUserCache.generation();
         Cursor c = mContext.getContentResolver().query(uri, projection, selection, selectionArgs,
                 sortOrder);
         if (c == null) {
@@ -368,13 +504,90 @@ public class Musubi {
             }
 
             DbIdentity user = DbIdentity.fromStandardCursor(mContext, c);
-            sUserCache.put(localId, user);
+            sUserCache.put(user, generation);
             return user;
         } finally {
             c.close();
         }
     }
 
+    /**
+     * Returns the identities with the given local ids, keyed by local id.
+     * Identities missing from the cache are fetched with batched IN queries
+     * rather than one query each. Ids with no identity have no entry.
+     */
+    public Map<Long, DbIdentity> usersForLocalIds(long... localIds) {
+        Map<Long, DbIdentity> users = new HashMap<Long, DbIdentity>(localIds.length * 2);
+        long[] uncached = new long[localIds.length];
+        int uncachedCount = 0;
+        for (long id : localIds) {
+            if (users.containsKey(id)) {
+                continue;
+            }
+            DbIdentity cached = sUserCache.get(id);
+            if (cached != null) {
+                users.put(id, cached);
+            } else {
+                users.put(id, null);
+                uncached[uncachedCount++] = id;
+            }
+        }
+
+        Uri uri = uriForDir(DbThing.IDENTITY);
+        for (int start = 0; start < uncachedCount; start += MAX_IN_CLAUSE_ARGS) {
+            int end = Math.min(uncachedCount, start + MAX_IN_CLAUSE_ARGS);
+            StringBuilder selection = new StringBuilder(DbIdentity.COL_IDENTITY_ID)
+                    .append(" IN (");
+            String[] selectionArgs = new String[end - start];
+            for (int i = start; i < end; i++) {
+                selection.append((i == start) ? "?" : ",?");
+                selectionArgs[i - start] = Long.toString(uncached[i]);
+            }
+            selection.append(")");
+            long generation = sUserCache.generation();
+            Cursor c = mContext.getContentResolver().query(uri, DbIdentity.COLUMNS,
+                    selection.toString(), selectionArgs, null);
+            if (c == null) {
+                continue;
+            }
+            try {
+                while (c.moveToNext()) {
+                    DbIdentity user = DbIdentity.fromStandardCursor(mContext, c);
+                    sUserCache.put(user, generation);
+                    users.put(user.getLocalId(), user);
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        for (int i = 0; i < uncachedCount; i++) {
+            if (users.get(uncached[i]) == null) {
+                Log.w(TAG, "No user found for " + uncached[i]);
+                users.remove(uncached[i]);
+            }
+        }
+        return users;
+    }
+
+    /**
+     * Resolves the senders of all the given objects in a fixed number of
+     * queries, so later calls to {@link DbObj#getSender()} need none.
+     */
+    public void prefetchSenders(List<DbObj> objs) {
+        long[] senderIds = new long[objs.size()];
+        for (int i = 0; i < senderIds.length; i++) {
+            senderIds[i] = objs.get(i).getSenderId();
+        }
+        Map<Long, DbIdentity> senders = usersForLocalIds(senderIds);
+        for (DbObj obj : objs) {
+            DbIdentity sender = senders.get(obj.getSenderId());
+            if (sender != null) {
+                obj.setSender(sender);
+            }
+        }
+    }
+
     /**
      * Returns the DbUser that is currently logged in to this app.
      */
@@ -448,18 +661,573 @@ public class Musubi {
         return mContext.getContentResolver().query(uri, projection, selection, selectionArgs, sortOrder);
     }
 
+    /**
+     * Queries this application's objects with a typed query.
+     */
+    public Cursor queryAppData(String[] projection, ObjQuery query) {
+        ObjQuery scoped = query.copy().and(DbObj.COL_APP_ID).eq(mContext.getPackageName());
+        Uri uri = uriForDir(DbThing.OBJECT);
+        return mContext.getContentResolver().query(uri, projection, scoped.getSelection(),
+                scoped.getSelectionArgs(), scoped.getSortOrder());
+    }
+
+    /**
+     * Receives a report of each batch of insertions made by the provider
+     * thread, on that thread.
+     */
+    public interface InsertBatchListener {
+        /**
+         * @param size the number of objects inserted together.
+         * @param latencyMillis the time the oldest of them spent queued.
+         */
+        public void onBatchInserted(int size, long latencyMillis);
+    }
+
+    /**
+     * Configures how asynchronously posted objects are coalesced. Objects
+     * queued while the provider thread is busy are inserted together, up to
+     * maxBatchSize at a time; a batch is held back for up to maxLatencyMillis
+     * waiting for more objects. The defaults are a batch size of 32 and no
+     * added latency. A batch size of 1 inserts every object on its own.
+     */
+    public void setInsertBatching(int maxBatchSize, long maxLatencyMillis) {
+        if (maxBatchSize < 1 || maxLatencyMillis < 0) {
+            throw new IllegalArgumentException("Bad batching " + maxBatchSize + ", "
+                    + maxLatencyMillis);
+        }
+        mContentProviderThread.mMaxBatchSize = maxBatchSize;
+        mContentProviderThread.mMaxLatency = maxLatencyMillis;
+    }
+
+    public void setInsertBatchListener(InsertBatchListener listener) {
+        mContentProviderThread.mBatchListener = listener;
+    }
+
+    /**
+     * What to do with an object posted while the insert queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for the queue to drain below its capacity.
+         */
+        BLOCK,
+        /**
+         * Throw a {@link RejectedExecutionException}.
+         */
+        FAIL_FAST,
+        /**
+         * Replace the contents of a queued object with the same feed, type
+         * and string key, which the new object supersedes. Objects with no
+         * string key, a raw stream or a result future can't be merged, and
+         * wait as with {@link #BLOCK}.
+         */
+        MERGE
+    }
+
+    /**
+     * Bounds the number of posted objects waiting to be inserted. The
+     * default is a capacity of 1024 with {@link OverflowPolicy#BLOCK}.
+     * Posts made from the provider thread itself, such as from a post
+     * callback, are never held back. A batch from
+     * {@link DbFeed#postObjsAsync(List)} is admitted whole or not at all,
+     * and one larger than the capacity is always rejected.
+     */
+    public void setInsertQueueBounds(int capacity, OverflowPolicy policy) {
+        if (capacity < 1 || policy == null) {
+            throw new IllegalArgumentException("Bad queue bounds " + capacity + ", " + policy);
+        }
+        mContentProviderThread.setBounds(capacity, policy);
+    }
+
+    /**
+     * Returns the number of posted objects not yet inserted.
+     */
+    public int getInsertQueueDepth() {
+        return mContentProviderThread.getQueueDepth();
+    }
+
+    /**
+     * Returns the total time posting threads have spent waiting for room in
+     * the insert queue.
+     */
+    public long getInsertQueueWaitMillis() {
+        return mContentProviderThread.getWaitMillis();
+    }
+
+    /**
+     * Returns the number of posts rejected by {@link OverflowPolicy#FAIL_FAST}.
+     */
+    public long getInsertQueueRejectionCount() {
+        return mContentProviderThread.getRejectionCount();
+    }
+
+    /**
+     * Returns the number of posts merged by {@link OverflowPolicy#MERGE}.
+     */
+    public long getInsertQueueMergeCount() {
+        return mContentProviderThread.getMergeCount();
+    }
+
     class ContentProviderThread extends Thread {
+        static final int DEFAULT_MAX_BATCH_SIZE = 32;
+        static final int DEFAULT_QUEUE_CAPACITY = 1024;
+        static final int MAX_REPLAY_ATTEMPTS = 3;
+        private static final int MSG_INSERT = 0;
+        private static final int MSG_FLUSH = 1;
+        private static final int MSG_DELETE = 2;
+
         public Handler mHandler;
+        volatile int mMaxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+        volatile long mMaxLatency = 0;
+        volatile InsertBatchListener mBatchListener;
+
+        // Insertions awaiting a flush, touched only on this thread.
+        private final ArrayList<Insertion> mPending = new ArrayList<Insertion>();
+
+        // Admission control over every insertion not yet completed, and the
+        // unclaimed insertions that a superseding post may merge into.
+        private final Object mQueueLock = new Object();
+        private final HashMap<String, Insertion> mMergeable = new HashMap<String, Insertion>();
+        private int mCapacity = DEFAULT_QUEUE_CAPACITY;
+        private OverflowPolicy mOverflowPolicy = OverflowPolicy.BLOCK;
+        private int mQueued;
+        private long mWaitMillis;
+        private long mRejections;
+        private long mMerges;
 
         private Handler createHandler() {
             return new Handler() {
                 public void handleMessage(Message msg) {
-                    Insertion i = (Insertion) msg.obj;
-                    mContext.getContentResolver().insert(i.uri, i.cv);
+                    switch (msg.what) {
+                        case MSG_INSERT:
+                            enqueue((Insertion) msg.obj);
+                            break;
+                        case MSG_FLUSH:
+                            flush();
+                            break;
+                        case MSG_DELETE:
+                            // Apply after any posts queued before it.
+                            flush();
+                            delete((Deletion) msg.obj);
+                            break;
+                    }
                 }
             };
         }
 
+        private void enqueue(Insertion i) {
+            if (i.raw != null) {
+                // The raw stream is written to the new object's uri, so
+                // this insert can't join a batch. Keep posting order.
+                flush();
+                if (!claim(i)) {
+                    closeQuietly(i.raw);
+                    return;
+                }
+                Uri objUri = insertOne(i);
+                writeRaw(objUri, i.raw);
+                finished(1);
+                reportBatch(1, i.queuedAt);
+                return;
+            }
+            mPending.add(i);
+            if (mPending.size() >= mMaxBatchSize) {
+                flush();
+            } else if (!mHandler.hasMessages(MSG_FLUSH)) {
+                // Queued behind any insertions already waiting, so a burst
+                // is drained into one batch even with no added latency.
+                mHandler.sendEmptyMessageDelayed(MSG_FLUSH, mMaxLatency);
+            }
+        }
+
+        private void flush() {
+            mHandler.removeMessages(MSG_FLUSH);
+            if (mPending.isEmpty()) {
+                return;
+            }
+            OutboxJournal outbox = getOutbox();
+            while (!mPending.isEmpty()) {
+                int size = Math.min(mPending.size(), mMaxBatchSize);
+                List<Insertion> batch = mPending.subList(0, size);
+                long queuedAt = batch.get(0).queuedAt;
+                if (outbox != null) {
+                    // One sync puts the whole batch on the storage device
+                    // before the provider can see any of it.
+                    sync(outbox);
+                }
+                int inserted = insertBatch(batch);
+                if (outbox != null) {
+                    acknowledge(outbox, batch);
+                }
+                if (inserted > 0) {
+                    reportBatch(inserted, queuedAt);
+                }
+                batch.clear();
+            }
+        }
+
+        private void sync(OutboxJournal outbox) {
+            try {
+                outbox.sync();
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't sync outbox", e);
+            }
+        }
+
+        /**
+         * Acknowledges the journal entries of insertions that need no replay.
+         * Failed insertions nobody was told about stay in the journal.
+         */
+        private void acknowledge(OutboxJournal outbox, List<Insertion> done) {
+            long[] seqs = new long[done.size()];
+            int count = 0;
+            for (Insertion i : done) {
+                if (i.journalSeq != -1 && i.settled) {
+                    seqs[count++] = i.journalSeq;
+                }
+            }
+            try {
+                outbox.ack(seqs, count);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't acknowledge outbox entries", e);
+            }
+        }
+
+        /**
+         * Queues the posts journaled by an earlier process.
+         */
+        void replayOutbox() {
+            File file = new File(mContext.getFilesDir(), OutboxJournal.FILE_NAME);
+            if (!sOutboxEnabled && !file.exists()) {
+                return;
+            }
+            if (openOutbox(mContext) == null) {
+                return;
+            }
+            List<OutboxJournal.Record> records = takeOutboxReplay();
+            if (records == null || records.isEmpty()) {
+                return;
+            }
+            Log.i(TAG, "Replaying " + records.size() + " journaled posts");
+            OutboxJournal outbox = getOutbox();
+            long[] replayed = new long[records.size()];
+            int count = 0;
+            for (OutboxJournal.Record r : records) {
+                // Each replay is journaled afresh with its attempt counted,
+                // so a post that keeps failing is eventually dropped.
+                replayed[count++] = r.seq;
+                OutboxEntry entry;
+                try {
+                    entry = OutboxEntry.decode(r.body);
+                } catch (IOException e) {
+                    Log.e(TAG, "Dropping unreadable journaled post", e);
+                    continue;
+                }
+                if (entry.attempts >= MAX_REPLAY_ATTEMPTS) {
+                    Log.w(TAG, "Dropping post to " + entry.uri + " after "
+                            + entry.attempts + " replays");
+                    continue;
+                }
+                Insertion i = new Insertion(entry.uri, entry.cv, null, null);
+                i.attempts = entry.attempts + 1;
+                append(outbox, i);
+                admit(i);
+                enqueue(i);
+            }
+            try {
+                outbox.ack(replayed, count);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't acknowledge replayed outbox entries", e);
+            }
+        }
+
+        /**
+         * Journals an insertion before it is queued, if the outbox is on. The
+         * entry is synced with its batch, on this thread.
+         */
+        private void journal(Insertion i) {
+            if (!sOutboxEnabled || i.raw != null) {
+                return;
+            }
+            OutboxJournal outbox = openOutbox(mContext);
+            if (outbox != null) {
+                append(outbox, i);
+            }
+        }
+
+        private void append(OutboxJournal outbox, Insertion i) {
+            try {
+                i.journalSeq = outbox.append(OutboxEntry.encode(i.uri, i.cv, i.attempts));
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't journal post to " + i.uri, e);
+            }
+        }
+
+        /**
+         * Inserts the batch's insertions that weren't cancelled, returning
+         * how many were attempted.
+         */
+        private int insertBatch(List<Insertion> batch) {
+            ArrayList<Insertion> live = new ArrayList<Insertion>(batch.size());
+            for (Insertion i : batch) {
+                if (claim(i)) {
+                    live.add(i);
+                }
+            }
+            try {
+                insertLive(live);
+            } finally {
+                finished(live.size());
+            }
+            return live.size();
+        }
+
+        private void insertLive(List<Insertion> live) {
+            if (live.size() <= 1) {
+                if (live.size() == 1) {
+                    insertOne(live.get(0));
+                }
+                return;
+            }
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(live.size());
+            for (Insertion i : live) {
+                ops.add(ContentProviderOperation.newInsert(i.uri).withValues(i.cv).build());
+            }
+            // applyBatch isn't transactional, and a failure doesn't say
+            // which inserts were applied, so retrying any of them could
+            // post an object twice. The whole batch is failed instead.
+            Exception error;
+            try {
+                ContentProviderResult[] results =
+                        mContext.getContentResolver().applyBatch(AUTHORITY, ops);
+                for (int k = 0; k < live.size(); k++) {
+                    live.get(k).complete(results[k].uri);
+                }
+                return;
+            } catch (RemoteException e) {
+                error = e;
+            } catch (OperationApplicationException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            Log.e(TAG, "Batch insert of " + live.size() + " failed", error);
+            for (Insertion i : live) {
+                i.fail(error);
+            }
+        }
+
+        private Uri insertOne(Insertion i) {
+            Uri objUri;
+            try {
+                objUri = mContext.getContentResolver().insert(i.uri, i.cv);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Insert into " + i.uri + " failed", e);
+                i.fail(e);
+                return null;
+            }
+            i.complete(objUri);
+            return objUri;
+        }
+
+        /**
+         * Takes an insertion off the queue for inserting, making it
+         * unavailable for merges. Returns false if it was cancelled.
+         */
+        private boolean claim(Insertion i) {
+            synchronized (mQueueLock) {
+                if (i.mergeKey != null && mMergeable.get(i.mergeKey) == i) {
+                    mMergeable.remove(i.mergeKey);
+                }
+            }
+            if (i.start()) {
+                return true;
+            }
+            // Cancelled by the poster, so not to be replayed.
+            i.settled = true;
+            finished(1);
+            return false;
+        }
+
+        private void finished(int count) {
+            synchronized (mQueueLock) {
+                mQueued -= count;
+                mQueueLock.notifyAll();
+            }
+        }
+
+        /**
+         * Journals a new insertion and queues it, unless it was merged into
+         * a queued one. The journal is written before the queue is locked.
+         */
+        private void queue(Insertion i) {
+            journal(i);
+            boolean admitted;
+            try {
+                admitted = admit(i);
+            } catch (RejectedExecutionException e) {
+                discard(i.journalSeq);
+                throw e;
+            }
+            if (admitted) {
+                mHandler.sendMessage(mHandler.obtainMessage(MSG_INSERT, i));
+            }
+        }
+
+        /**
+         * Makes room for a new insertion according to the overflow policy.
+         * Returns false if the insertion was merged into a queued one.
+         */
+        private boolean admit(Insertion i) {
+            long displaced;
+            synchronized (mQueueLock) {
+                Insertion queued = null;
+                if (mQueued >= mCapacity && Thread.currentThread() != this) {
+                    if (mOverflowPolicy == OverflowPolicy.FAIL_FAST) {
+                        mRejections++;
+                        throw new RejectedExecutionException("Insert queue full at " + mQueued);
+                    }
+                    if (mOverflowPolicy == OverflowPolicy.MERGE && i.mergeKey != null) {
+                        queued = mMergeable.get(i.mergeKey);
+                    }
+                    if (queued == null) {
+                        awaitRoom(1);
+                    }
+                }
+                if (queued == null) {
+                    mQueued++;
+                    if (i.mergeKey != null) {
+                        mMergeable.put(i.mergeKey, i);
+                    }
+                    return true;
+                }
+                displaced = supersede(queued, i);
+                mMerges++;
+            }
+            discard(displaced);
+            return false;
+        }
+
+        /**
+         * Replaces a queued insertion's contents and journal entry with a
+         * newer post's, returning the journal entry replaced, or -1. The
+         * newer post is already journaled, so this only swaps fields.
+         */
+        private long supersede(Insertion queued, Insertion newer) {
+            long displaced = queued.journalSeq;
+            queued.cv = newer.cv;
+            queued.journalSeq = newer.journalSeq;
+            queued.attempts = newer.attempts;
+            return displaced;
+        }
+
+        /**
+         * Acknowledges a journal entry that will never be inserted.
+         */
+        private void discard(long journalSeq) {
+            if (journalSeq == -1) {
+                return;
+            }
+            try {
+                getOutbox().ack(new long[] { journalSeq }, 1);
+            } catch (IOException e) {
+                Log.w(TAG, "Couldn't acknowledge outbox entry", e);
+            }
+        }
+
+        /**
+         * Makes room for a group of insertions, which can be neither merged
+         * nor partly admitted. A group larger than the queue is rejected.
+         */
+        private void reserve(int count) {
+            synchronized (mQueueLock) {
+                if (Thread.currentThread() != this) {
+                    if (count > mCapacity) {
+                        mRejections++;
+                        throw new RejectedExecutionException("Batch of " + count
+                                + " exceeds insert queue capacity " + mCapacity);
+                    }
+                    if (mQueued + count > mCapacity) {
+                        if (mOverflowPolicy == OverflowPolicy.FAIL_FAST) {
+                            mRejections++;
+                            throw new RejectedExecutionException("Insert queue full at "
+                                    + mQueued);
+                        }
+                        awaitRoom(count);
+                    }
+                }
+                mQueued += count;
+            }
+        }
+
+        /**
+         * Waits until count more insertions fit in the queue. Throws if the
+         * capacity is lowered below count while waiting.
+         */
+        private void awaitRoom(int count) {
+            long start = SystemClock.uptimeMillis();
+            boolean interrupted = false;
+            try {
+                while (mQueued + count > mCapacity) {
+                    if (count > mCapacity) {
+                        mRejections++;
+                        throw new RejectedExecutionException("Batch of " + count
+                                + " exceeds insert queue capacity " + mCapacity);
+                    }
+                    try {
+                        mQueueLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                mWaitMillis += SystemClock.uptimeMillis() - start;
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        void setBounds(int capacity, OverflowPolicy policy) {
+            synchronized (mQueueLock) {
+                mCapacity = capacity;
+                mOverflowPolicy = policy;
+                mQueueLock.notifyAll();
+            }
+        }
+
+        int getQueueDepth() {
+            synchronized (mQueueLock) {
+                return mQueued;
+            }
+        }
+
+        long getWaitMillis() {
+            synchronized (mQueueLock) {
+                return mWaitMillis;
+            }
+        }
+
+        long getRejectionCount() {
+            synchronized (mQueueLock) {
+                return mRejections;
+            }
+        }
+
+        long getMergeCount() {
+            synchronized (mQueueLock) {
+                return mMerges;
+            }
+        }
+
+        private void reportBatch(int size, long queuedAt) {
+            InsertBatchListener listener = mBatchListener;
+            if (listener != null) {
+                listener.onBatchInserted(size, SystemClock.uptimeMillis() - queuedAt);
+            }
+        }
+
         public void run() {
             Looper.prepare();
 
@@ -471,39 +1239,212 @@ public class Musubi {
             Looper.loop();
         }
 
+        /**
+         * Queues a deletion, applied after every insertion queued before it.
+         */
+        public void delete(Uri uri, String selection, String[] selectionArgs) {
+            Deletion d = new Deletion(uri, selection, selectionArgs);
+            mHandler.sendMessage(mHandler.obtainMessage(MSG_DELETE, d));
+        }
+
+        private void delete(Deletion d) {
+            try {
+                int count = mContext.getContentResolver().delete(d.uri, d.selection,
+                        d.selectionArgs);
+                if (DBG) Log.d(TAG, "Deleted " + count + " from " + d.uri);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Delete from " + d.uri + " failed", e);
+            }
+        }
+
         public void insert(Uri uri, ContentValues cv) {
-            Insertion i = new Insertion(uri, cv);
-            Message m = mHandler.obtainMessage();
-            m.obj = i;
-            mHandler.sendMessage(m);
+            insert(uri, cv, null);
+        }
+
+        /**
+         * Queues an insertion whose raw payload is streamed to the new
+         * object's uri after the insert.
+         */
+        public void insert(Uri uri, ContentValues cv, InputStream raw) {
+            queue(new Insertion(uri, cv, raw, null));
+        }
+
+        /**
+         * Queues an insertion whose outcome is delivered through the
+         * returned future and the optional callback.
+         */
+        public Future<Uri> insertAsync(Uri uri, ContentValues cv, Obj obj,
+                DbFeed.PostCallback callback) {
+            InsertFuture future = new InsertFuture(obj, callback);
+            Insertion i = new Insertion(uri, cv, null, future);
+            queue(i);
+            return future;
+        }
+
+        /**
+         * Inserts every row or none in a single batch, on the calling
+         * thread. Returns the uris of the new rows in order.
+         */
+        public List<Uri> insertAll(Uri uri, List<ContentValues> rows)
+                throws OperationApplicationException {
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(rows.size());
+            for (ContentValues cv : rows) {
+                ops.add(ContentProviderOperation.newInsert(uri).withValues(cv).build());
+            }
+            ContentProviderResult[] results;
+            try {
+                results = mContext.getContentResolver().applyBatch(AUTHORITY, ops);
+            } catch (RemoteException e) {
+                throw new OperationApplicationException("Provider failed", e);
+            }
+            List<Uri> uris = new ArrayList<Uri>(results.length);
+            for (ContentProviderResult result : results) {
+                uris.add(result.uri);
+            }
+            return uris;
+        }
+
+        /**
+         * Queues a batch of rows to be inserted all or none, after every
+         * insertion queued before it.
+         */
+        public Future<List<Uri>> insertAllAsync(final Uri uri, final List<ContentValues> rows) {
+            reserve(rows.size());
+            final FutureTask<List<Uri>> task = new FutureTask<List<Uri>>(
+                    new Callable<List<Uri>>() {
+                        @Override
+                        public List<Uri> call() throws OperationApplicationException {
+                            return insertAll(uri, rows);
+                        }
+                    });
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                    try {
+                        task.run();
+                    } finally {
+                        finished(rows.size());
+                    }
+                }
+            });
+            return task;
         }
 
         public Uri insertSync(Uri uri, ContentValues cv) {
         	return mContext.getContentResolver().insert(uri, cv);
         }
 
+        private void writeRaw(Uri objUri, InputStream raw) {
+            OutputStream out = null;
+            try {
+                if (objUri == null) {
+                    Log.e(TAG, "Insert failed, dropping raw stream.");
+                    return;
+                }
+                out = mContext.getContentResolver().openOutputStream(objUri);
+                byte[] buffer = new byte[RAW_CHUNK_SIZE];
+                int read;
+                while ((read = raw.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write raw data for " + objUri, e);
+            } finally {
+                closeQuietly(raw);
+                closeQuietly(out);
+            }
+        }
+
+        private void closeQuietly(Closeable c) {
+            if (c == null) {
+                return;
+            }
+            try {
+                c.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing stream", e);
+            }
+        }
+
+        private class Deletion {
+            final Uri uri;
+            final String selection;
+            final String[] selectionArgs;
+
+            Deletion(Uri uri, String selection, String[] selectionArgs) {
+                this.uri = uri;
+                this.selection = selection;
+                this.selectionArgs = selectionArgs;
+            }
+        }
+
         private class Insertion {
             Uri uri;
 
-            ContentValues cv;
+            // Replaced by a superseding post until the insertion is claimed.
+            volatile ContentValues cv;
 
-            public Insertion(Uri uri, ContentValues cv) {
+            InputStream raw;
+
+            InsertFuture future;
+
+            // Identifies the posts this one supersedes, if it may be merged.
+            final String mergeKey;
+
+            // The insertion's entry in the outbox journal, or -1.
+            volatile long journalSeq = -1;
+
+            // Set once the insertion needs no replay: inserted, cancelled, or
+            // failed with the failure reported to the poster.
+            volatile boolean settled;
+
+            // How many times the insertion has been replayed from the journal.
+            int attempts;
+
+            final long queuedAt = SystemClock.uptimeMillis();
+
+            public Insertion(Uri uri, ContentValues cv, InputStream raw, InsertFuture future) {
                 this.uri = uri;
                 this.cv = cv;
+                this.raw = raw;
+                this.future = future;
+                this.mergeKey = (raw == null && future == null) ? mergeKey(uri, cv) : null;
             }
-        }
-    }
 
-    @SuppressWarnings("serial")
-	private static class UserCache extends LinkedHashMap<Long, DbIdentity> {
-        private static final int MAX_ENTRIES = 10;
-        public UserCache() {
-            super(10, 0.75f, true);
-        }
+            private String mergeKey(Uri uri, ContentValues cv) {
+                String stringKey = cv.getAsString(DbObj.COL_STRING_KEY);
+                if (stringKey == null) {
+                    return null;
+                }
+                return uri + "\n" + cv.getAsString(DbObj.COL_FEED_ID) + "\n"
+                        + cv.getAsString(DbObj.COL_PARENT_ID) + "\n"
+                        + cv.getAsString(DbObj.COL_TYPE) + "\n" + stringKey;
+            }
 
-        @Override
-        protected boolean removeEldestEntry(java.util.Map.Entry<Long, DbIdentity> eldest) {
-            return size() > MAX_ENTRIES;
+            boolean start() {
+                return future == null || future.start();
+            }
+
+            void complete(Uri objUri) {
+                if (objUri == null) {
+                    fail(new IllegalStateException("Provider rejected insert into " + uri));
+                    return;
+                }
+                settled = true;
+                if (future != null) {
+                    future.set(objUri);
+                }
+            }
+
+            void fail(Exception e) {
+                if (future != null) {
+                    // The poster owns any retry, so the post isn't replayed.
+                    settled = true;
+                    future.setException(e);
+                }
+            }
         }
     }
 
@@ -11,39 +11,43 @@ public class MusubiUtil {
         return "(" + A + ") AND (" + B + ")";
     }
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     static String convertToHex(byte[] data) {
-        StringBuffer buf = new StringBuffer();
-    
+        char[] hex = new char[data.length * 2];
         for (int i = 0; i < data.length; i++) {
-            int halfbyte = (data[i] >>> 4) & 0x0F;
-            int two_halfs = 0;
-    
-            do {
-                if ((0 <= halfbyte) && (halfbyte <= 9)) {
-                    buf.append((char) ('0' + halfbyte));
-                } else {
-                    buf.append((char) ('a' + (halfbyte - 10)));
-                }
-    
-                halfbyte = data[i] & 0x0F;
-            } while (two_halfs++ < 1);
+            hex[2 * i] = HEX_DIGITS[(data[i] >>> 4) & 0x0F];
+            hex[2 * i + 1] = HEX_DIGITS[data[i] & 0x0F];
         }
-        return buf.toString();
+        return new String(hex);
     }
 
     /**
      * Converts a hex string to a byte array.
+     *
+     * @throws IllegalArgumentException if the string has an odd length or a
+     *     character that isn't a hex digit.
      */
     public static byte[] convertToByteArray(String s) {
         int len = s.length();
+        if (len % 2 != 0) {
+            throw new IllegalArgumentException("Odd-length hex string: " + s);
+        }
         byte[] data = new byte[len/2];
         for (int i = 0; i < len; i += 2) {
-            data[i/2] = (byte) ((Character.digit(s.charAt(i), 16) << 4)
-                    + Character.digit(s.charAt(i+1), 16));
+            data[i/2] = (byte) ((hexDigit(s, i) << 4) + hexDigit(s, i + 1));
         }
         return data;
     }
 
+    private static int hexDigit(String s, int index) {
+        int digit = Character.digit(s.charAt(index), 16);
+        if (digit == -1) {
+            throw new IllegalArgumentException("Bad hex digit at " + index + ": " + s);
+        }
+        return digit;
+    }
+
     public static long shortHash(byte[] data) {
         if (data.length < 8) {
             throw new IllegalArgumentException("Data too short");
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import android.content.ContentUris;
+import android.database.ContentObserver;
+import android.net.Uri;
+
+/**
+ * A least-recently-used cache of objects by local id, bounded both by
+ * entry count and by an estimate of the memory its objects hold.
+ * Entries are invalidated by changes to {@link DbObj#OBJ_URI}. From API
+ * level 16 a change names the object, and only its entry is dropped. Older
+ * platforms don't say which object changed, so every object write, a new
+ * post included, clears the whole cache; there the cache mostly serves
+ * repeated reads between writes, such as rebinding a list.
+ * <p>
+ * Cached objects are shared by every caller in the process and must be
+ * treated as read-only, including the json and raw payloads they return.
+ * A payload loaded after an object was cached is added to its size.
+ */
+public final class ObjCache {
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+    private static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private int mMaxEntries = DEFAULT_MAX_ENTRIES;
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mBytes;
+    // Advanced by every invalidation, so fills that raced one are dropped.
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    /**
+     * Invalidates entries as objects change. Platforms that report the
+     * changed uri invalidate a single entry; older ones clear the cache,
+     * since deferring the clear would serve objects that were changed or
+     * deleted.
+     */
+    final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            clear();
+        }
+
+        // Called in place of onChange(boolean) from API level 16.
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || uri.getPathSegments().size() < 2) {
+                clear();
+                return;
+            }
+            try {
+                remove(ContentUris.parseId(uri));
+            } catch (NumberFormatException e) {
+                clear();
+            }
+        }
+    };
+
+    ObjCache() {
+    }
+
+    synchronized DbObj get(long localId) {
+        Entry entry = mEntries.get(localId);
+        if (entry == null) {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return entry.obj;
+    }
+
+    /**
+     * Returns the current generation, to be read before querying for
+     * objects that will be put in the cache.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches an object read at the given generation, unless the cache was
+     * invalidated since.
+     */
+    void put(DbObj obj, long generation) {
+        // Measured outside the cache lock, since the object has its own.
+        Entry entry = new Entry(obj, obj.estimateSize());
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            Entry old = mEntries.put(obj.getLocalId(), entry);
+            if (old != null) {
+                mBytes -= old.size;
+            }
+            mBytes += entry.size;
+            obj.setCache(this);
+            trim();
+        }
+    }
+
+    /**
+     * Re-measures a cached object after one of its payloads was loaded.
+     */
+    void resize(DbObj obj) {
+        long size = obj.estimateSize();
+        synchronized (this) {
+            Entry entry = mEntries.get(obj.getLocalId());
+            if (entry == null || entry.obj != obj) {
+                return;
+            }
+            mBytes += size - entry.size;
+            entry.size = size;
+            trim();
+        }
+    }
+
+    synchronized void remove(long localId) {
+        mGeneration++;
+        Entry old = mEntries.remove(localId);
+        if (old != null) {
+            mBytes -= old.size;
+        }
+    }
+
+    /**
+     * Empties the cache. Statistics are kept.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Sets the bounds of this cache, evicting entries as needed.
+     */
+    public synchronized void setLimits(int maxEntries, long maxBytes) {
+        mMaxEntries = maxEntries;
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes) && eldest.hasNext()) {
+            mBytes -= eldest.next().size;
+            eldest.remove();
+            mEvictions++;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the estimated memory held by cached objects.
+     */
+    public synchronized long sizeInBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[obj cache size:" + mEntries.size() + ", bytes:" + mBytes + ", hits:" + mHits
+                + ", misses:" + mMisses + ", evictions:" + mEvictions + "]";
+    }
+
+    private static final class Entry {
+        final DbObj obj;
+        long size;
+
+        Entry(DbObj obj, long size) {
+            this.obj = obj;
+            this.size = size;
+        }
+    }
+}
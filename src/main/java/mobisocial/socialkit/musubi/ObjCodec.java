@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.nio.charset.Charset;
+import java.util.Iterator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+
+/**
+ * Encodes the json of an Obj for storage in the {@link DbObj#COL_JSON} column.
+ * Stored values are decoded with whichever codec wrote them, so feeds may
+ * mix encodings.
+ */
+public abstract class ObjCodec {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * Plain json text, readable by every Musubi client. This is the default.
+     */
+    public static final ObjCodec JSON = new ObjCodec() {
+        @Override
+        public void putJson(ContentValues values, JSONObject json) {
+            values.put(DbObj.COL_JSON, JsonTextWriter.write(json, null));
+        }
+
+        @Override
+        public void putJson(ContentValues values, JSONObject json, JSONObject overlay) {
+            values.put(DbObj.COL_JSON, JsonTextWriter.write(json, overlay));
+        }
+    };
+
+    /**
+     * A compact MessagePack-style binary encoding, stored in the raw column
+     * alongside the json text, so other clients still read the text. This
+     * client decodes the binary form instead, which is cheaper to parse.
+     * Objects with a raw payload of their own keep it, and are stored as
+     * text only. Objects posted this way without a raw payload return the
+     * binary form from {@link DbObj#getRaw()}, so it suits app-private data
+     * such as game state rather than objects that use their raw payload.
+     */
+    public static final ObjCodec BINARY = new BinaryObjCodec();
+
+    /**
+     * Stores the given json in the json column of values.
+     */
+    public abstract void putJson(ContentValues values, JSONObject json);
+
+    /**
+     * Stores the given json, with the top-level fields of overlay in place
+     * of any of the same name, in the json column of values. Neither object
+     * is modified. The built-in codecs merge the overlay as they encode;
+     * this implementation makes a shallow merged copy.
+     */
+    public void putJson(ContentValues values, JSONObject json, JSONObject overlay) {
+        if (overlay == null) {
+            putJson(values, json);
+            return;
+        }
+        JSONObject merged = new JSONObject();
+        try {
+            Iterator<?> keys = json.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                merged.put(key, json.opt(key));
+            }
+            keys = overlay.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                merged.put(key, overlay.opt(key));
+            }
+        } catch (JSONException e) {
+            throw new IllegalArgumentException(e);
+        }
+        putJson(values, merged);
+    }
+
+    /**
+     * Decodes a value read from the json column, as returned by
+     * {@link android.database.Cursor#getBlob(int)}.
+     */
+    public static JSONObject decode(byte[] stored) throws JSONException {
+        if (stored == null) {
+            return null;
+        }
+        if (BinaryObjCodec.isBinary(stored)) {
+            return BinaryObjCodec.decodeObject(stored);
+        }
+        return new JSONObject(new String(stored, UTF_8));
+    }
+}
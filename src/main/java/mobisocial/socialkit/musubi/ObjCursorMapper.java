@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Arrays;
+
+import android.database.Cursor;
+
+/**
+ * Decodes the rows of an object cursor into {@link DbObj}s.
+ * Column indexes are resolved once per set of columns rather than once
+ * per row, and resolved again whenever a cursor's columns differ.
+ * Header fields absent from the cursor's projection throw when read from
+ * the decoded object; json is parsed on first use, and payloads missing
+ * from the projection are fetched by local id when requested.
+ * @see DbObj.Projection
+ */
+public class ObjCursorMapper {
+    private final Musubi mMusubi;
+    private volatile Layout mLayout;
+
+    public ObjCursorMapper(Musubi musubi) {
+        mMusubi = musubi;
+    }
+
+    /**
+     * Returns the object at the cursor's current position.
+     */
+    public DbObj objForCursor(Cursor cursor) {
+        return layoutFor(cursor).decode(mMusubi, cursor);
+    }
+
+    private Layout layoutFor(Cursor cursor) {
+        Layout layout = mLayout;
+        // Keyed on the columns, which a merged or requeried cursor may
+        // change without becoming a different object.
+        if (layout == null || !layout.matches(cursor.getColumnNames())) {
+            layout = new Layout(cursor);
+            mLayout = layout;
+        }
+        return layout;
+    }
+
+    /**
+     * The column indexes of a cursor's columns; -1 marks a missing column.
+     */
+    static final class Layout {
+        final String[] columns;
+        final int id;
+        final int appId;
+        final int type;
+        final int stringKey;
+        final int json;
+        final int senderId;
+        final int hash;
+        final int feedId;
+        final int intKey;
+        final int timestamp;
+        final int parentId;
+        final int raw;
+        final int missingFields;
+
+        // The sender's identity, when joined into the cursor.
+        final int senderName;
+        final int senderHash;
+        final int senderOwned;
+        final int senderClaimed;
+        final int senderBlocked;
+        final int senderWhitelisted;
+        final boolean hasSender;
+
+        Layout(Cursor c) {
+            columns = c.getColumnNames();
+            id = c.getColumnIndex(DbObj.COL_ID);
+            appId = c.getColumnIndex(DbObj.COL_APP_ID);
+            type = c.getColumnIndex(DbObj.COL_TYPE);
+            stringKey = c.getColumnIndex(DbObj.COL_STRING_KEY);
+            json = c.getColumnIndex(DbObj.COL_JSON);
+            senderId = c.getColumnIndex(DbObj.COL_IDENTITY_ID);
+            hash = c.getColumnIndex(DbObj.COL_UNIVERSAL_HASH);
+            feedId = c.getColumnIndex(DbObj.COL_FEED_ID);
+            intKey = c.getColumnIndex(DbObj.COL_INT_KEY);
+            timestamp = c.getColumnIndex(DbObj.COL_TIMESTAMP);
+            parentId = c.getColumnIndex(DbObj.COL_PARENT_ID);
+            raw = c.getColumnIndex(DbObj.COL_RAW);
+            senderName = c.getColumnIndex(DbIdentity.COL_NAME);
+            senderHash = c.getColumnIndex(DbIdentity.COL_ID_HASH);
+            senderOwned = c.getColumnIndex(DbIdentity.COL_OWNED);
+            senderClaimed = c.getColumnIndex(DbIdentity.COL_CLAIMED);
+            senderBlocked = c.getColumnIndex(DbIdentity.COL_BLOCKED);
+            senderWhitelisted = c.getColumnIndex(DbIdentity.COL_WHITELISTED);
+            hasSender = senderId != -1 && senderName != -1 && senderHash != -1
+                    && senderOwned != -1 && senderClaimed != -1 && senderBlocked != -1
+                    && senderWhitelisted != -1;
+
+            int missing = 0;
+            missing |= (id == -1) ? DbObj.FIELD_ID : 0;
+            missing |= (appId == -1) ? DbObj.FIELD_APP_ID : 0;
+            missing |= (type == -1) ? DbObj.FIELD_TYPE : 0;
+            missing |= (stringKey == -1) ? DbObj.FIELD_STRING_KEY : 0;
+            missing |= (senderId == -1) ? DbObj.FIELD_SENDER : 0;
+            missing |= (hash == -1) ? DbObj.FIELD_HASH : 0;
+            missing |= (feedId == -1) ? DbObj.FIELD_FEED : 0;
+            missing |= (intKey == -1) ? DbObj.FIELD_INT_KEY : 0;
+            missing |= (timestamp == -1) ? DbObj.FIELD_TIMESTAMP : 0;
+            missing |= (parentId == -1) ? DbObj.FIELD_PARENT : 0;
+            missingFields = missing;
+        }
+
+        boolean matches(String[] cursorColumns) {
+            return columns == cursorColumns || Arrays.equals(columns, cursorColumns);
+        }
+
+        /**
+         * Throws if the cursor has no such column.
+         */
+        int require(int index, String column) {
+            if (index == -1) {
+                throw new IllegalStateException("Cursor was queried without column " + column);
+            }
+            return index;
+        }
+
+        DbObj decode(Musubi musubi, Cursor c) {
+            long localId = (id == -1) ? -1 : c.getLong(id);
+            String theAppId = (appId == -1) ? null : c.getString(appId);
+            String theType = (type == -1) ? null : c.getString(type);
+            String name = (stringKey == -1) ? null : c.getString(stringKey);
+            byte[] theJson = (json == -1) ? null : c.getBlob(json);
+            long theSenderId = (senderId == -1) ? -1 : c.getLong(senderId);
+            byte[] theHash = (hash == -1) ? null : c.getBlob(hash);
+            long theFeedId = (feedId == -1) ? -1 : c.getLong(feedId);
+            Integer theIntKey = (intKey == -1 || c.isNull(intKey)) ? null : c.getInt(intKey);
+            long theTimestamp = (timestamp == -1) ? -1 : c.getLong(timestamp);
+            Long theParentId = (parentId == -1 || c.isNull(parentId)) ? null
+                    : c.getLong(parentId);
+            byte[] theRaw = (raw == -1 || c.isNull(raw)) ? null : c.getBlob(raw);
+            DbObj obj = new DbObj(musubi, theAppId, theFeedId, theParentId, theSenderId,
+                    localId, theType, theJson, json != -1, theRaw, raw != -1, theIntKey, name,
+                    theTimestamp, theHash, missingFields);
+            if (hasSender) {
+                DbIdentity sender = decodeSender(musubi, c);
+                if (sender != null) {
+                    obj.setSender(sender);
+                }
+            }
+            return obj;
+        }
+
+        /**
+         * Returns the sender joined into the current row, or null if the
+         * cursor has no sender columns or the row has no sender. The sender
+         * isn't cached, as the cursor may predate the cache's last
+         * invalidation.
+         */
+        DbIdentity decodeSender(Musubi musubi, Cursor c) {
+            if (!hasSender || c.isNull(senderHash)) {
+                return null;
+            }
+            DbIdentity sender = new DbIdentity(musubi.getContext(), c.getString(senderName),
+                    c.getLong(senderId), PrincipalId.wrap(c.getBlob(senderHash)),
+                    c.getInt(senderOwned) == 1, c.getInt(senderClaimed) == 1,
+                    c.getInt(senderWhitelisted) == 1, c.getInt(senderBlocked) == 1);
+            return sender;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.database.Cursor;
+
+/**
+ * A typed query over objects, for example:
+ * <pre>
+ * ObjQuery.where(DbObj.COL_TYPE).eq("appstate")
+ *         .and(DbObj.COL_INT_KEY).gt(turn)
+ *         .orderByDesc(DbObj.COL_INT_KEY).limit(1);
+ * </pre>
+ * The selection and sort strings are compiled once per query shape, that is
+ * per sequence of columns and operators, ordering and limit, and reused by
+ * every query of the same shape. Only the argument values vary.
+ */
+public final class ObjQuery {
+    private static final int MAX_SHAPES = 256;
+    private static final ConcurrentHashMap<Shape, Compiled> sCompiled =
+            new ConcurrentHashMap<Shape, Compiled>();
+
+    private static final byte EQ = 0;
+    private static final byte NE = 1;
+    private static final byte LT = 2;
+    private static final byte LE = 3;
+    private static final byte GT = 4;
+    private static final byte GE = 5;
+    private static final byte IS_NULL = 6;
+    private static final byte NOT_NULL = 7;
+    private static final byte SELECTION = 8;
+    private static final String[] OPERATORS = new String[] {
+        " = ?", " != ?", " < ?", " <= ?", " > ?", " >= ?", " IS NULL", " IS NOT NULL", ""
+    };
+
+    private final Condition mCondition = new Condition();
+    private String[] mColumns = new String[4];
+    private byte[] mOps = new byte[4];
+    private int mTermCount;
+    private String[] mArgs = new String[4];
+    private int mArgCount;
+    private String mPendingColumn;
+    private String mOrderColumn;
+    private boolean mDescending;
+    private int mLimit = -1;
+    private Compiled mCompiled;
+
+    private ObjQuery() {
+    }
+
+    /**
+     * Begins a query with a condition on the given column.
+     */
+    public static Condition where(String column) {
+        return new ObjQuery().and(column);
+    }
+
+    /**
+     * Begins a query with a free-form selection, as taken by a content
+     * provider, whose arguments are bound ahead of any later condition's.
+     * The selection is part of the query's shape, so it should be one of a
+     * few fixed strings. A null selection matches every object.
+     */
+    public static ObjQuery withSelection(String selection, String[] selectionArgs) {
+        ObjQuery q = new ObjQuery();
+        if (selection != null) {
+            q.mPendingColumn = selection;
+            q.addTerm(SELECTION, null);
+            if (selectionArgs != null) {
+                for (String arg : selectionArgs) {
+                    q.addArg(arg);
+                }
+            }
+        }
+        return q;
+    }
+
+    /**
+     * Adds a condition on the given column.
+     */
+    public Condition and(String column) {
+        mPendingColumn = column;
+        return mCondition;
+    }
+
+    public ObjQuery orderBy(String column) {
+        return order(column, false);
+    }
+
+    public ObjQuery orderByDesc(String column) {
+        return order(column, true);
+    }
+
+    private ObjQuery order(String column, boolean descending) {
+        mOrderColumn = column;
+        mDescending = descending;
+        mCompiled = null;
+        return this;
+    }
+
+    /**
+     * Limits the query to the given number of rows. Requires an ordering.
+     */
+    public ObjQuery limit(int limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Limit must be positive, not " + limit);
+        }
+        mLimit = limit;
+        mCompiled = null;
+        return this;
+    }
+
+    /**
+     * Returns a copy of this query that may be refined independently.
+     */
+    public ObjQuery copy() {
+        ObjQuery q = new ObjQuery();
+        q.mColumns = mColumns.clone();
+        q.mOps = mOps.clone();
+        q.mTermCount = mTermCount;
+        q.mArgs = mArgs.clone();
+        q.mArgCount = mArgCount;
+        q.mOrderColumn = mOrderColumn;
+        q.mDescending = mDescending;
+        q.mLimit = mLimit;
+        q.mCompiled = mCompiled;
+        return q;
+    }
+
+    public String getSelection() {
+        return compiled().selection;
+    }
+
+    public String[] getSelectionArgs() {
+        return (mArgCount == 0) ? null : Arrays.copyOf(mArgs, mArgCount);
+    }
+
+    /**
+     * Returns the ordering clause, including this query's limit. Content
+     * providers take no separate limit argument on this platform, so the
+     * limit travels with the sort order.
+     */
+    public String getSortOrder() {
+        return compiled().sortOrder;
+    }
+
+    /**
+     * Runs this query over the objects of the given feed.
+     */
+    public Cursor query(DbFeed feed, String[] projection) {
+        return feed.query(projection, getSelection(), getSelectionArgs(), getSortOrder());
+    }
+
+    private ObjQuery addTerm(byte op, String arg) {
+        if (mPendingColumn == null) {
+            throw new IllegalStateException("No column for condition");
+        }
+        if (mTermCount == mColumns.length) {
+            mColumns = Arrays.copyOf(mColumns, mTermCount * 2);
+            mOps = Arrays.copyOf(mOps, mTermCount * 2);
+        }
+        mColumns[mTermCount] = mPendingColumn;
+        mOps[mTermCount] = op;
+        mTermCount++;
+        mPendingColumn = null;
+        if (arg != null) {
+            addArg(arg);
+        }
+        mCompiled = null;
+        return this;
+    }
+
+    private void addArg(String arg) {
+        if (mArgCount == mArgs.length) {
+            mArgs = Arrays.copyOf(mArgs, mArgCount * 2);
+        }
+        mArgs[mArgCount++] = arg;
+    }
+
+    private Compiled compiled() {
+        if (mCompiled == null) {
+            if (mLimit != -1 && mOrderColumn == null) {
+                throw new IllegalStateException("A limit requires an ordering");
+            }
+            Shape shape = new Shape(Arrays.copyOf(mColumns, mTermCount),
+                    Arrays.copyOf(mOps, mTermCount), mOrderColumn, mDescending, mLimit);
+            Compiled compiled = sCompiled.get(shape);
+            if (compiled == null) {
+                compiled = shape.compile();
+                if (sCompiled.size() < MAX_SHAPES) {
+                    sCompiled.putIfAbsent(shape, compiled);
+                }
+            }
+            mCompiled = compiled;
+        }
+        return mCompiled;
+    }
+
+    /**
+     * The comparisons available on a column. Arguments are bound as strings
+     * without boxing.
+     */
+    public final class Condition {
+        private Condition() {
+        }
+
+        /**
+         * Matches the given value, or a null column if the value is null.
+         */
+        public ObjQuery eq(String value) {
+            return (value == null) ? isNull() : addTerm(EQ, value);
+        }
+
+        public ObjQuery eq(long value) {
+            return addTerm(EQ, Long.toString(value));
+        }
+
+        /**
+         * Matches any other value, or a non-null column if the value is null.
+         */
+        public ObjQuery ne(String value) {
+            return (value == null) ? isNotNull() : addTerm(NE, value);
+        }
+
+        public ObjQuery ne(long value) {
+            return addTerm(NE, Long.toString(value));
+        }
+
+        public ObjQuery lt(long value) {
+            return addTerm(LT, Long.toString(value));
+        }
+
+        public ObjQuery le(long value) {
+            return addTerm(LE, Long.toString(value));
+        }
+
+        public ObjQuery gt(long value) {
+            return addTerm(GT, Long.toString(value));
+        }
+
+        public ObjQuery ge(long value) {
+            return addTerm(GE, Long.toString(value));
+        }
+
+        public ObjQuery isNull() {
+            return addTerm(IS_NULL, null);
+        }
+
+        public ObjQuery isNotNull() {
+            return addTerm(NOT_NULL, null);
+        }
+    }
+
+    private static final class Compiled {
+        final String selection;
+        final String sortOrder;
+
+        Compiled(String selection, String sortOrder) {
+            this.selection = selection;
+            this.sortOrder = sortOrder;
+        }
+    }
+
+    private static final class Shape {
+        final String[] columns;
+        final byte[] ops;
+        final String orderColumn;
+        final boolean descending;
+        final int limit;
+        final int hash;
+
+        Shape(String[] columns, byte[] ops, String orderColumn, boolean descending, int limit) {
+            this.columns = columns;
+            this.ops = ops;
+            this.orderColumn = orderColumn;
+            this.descending = descending;
+            this.limit = limit;
+
+            int h = Arrays.hashCode(columns);
+            h = 31 * h + Arrays.hashCode(ops);
+            h = 31 * h + ((orderColumn == null) ? 0 : orderColumn.hashCode());
+            h = 31 * h + (descending ? 1 : 0);
+            hash = 31 * h + limit;
+        }
+
+        Compiled compile() {
+            String selection = null;
+            if (columns.length > 0) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < columns.length; i++) {
+                    if (i > 0) {
+                        sb.append(" AND ");
+                    }
+                    if (ops[i] == SELECTION) {
+                        sb.append('(').append(columns[i]).append(')');
+                    } else {
+                        sb.append(columns[i]).append(OPERATORS[ops[i]]);
+                    }
+                }
+                selection = sb.toString();
+            }
+            String sortOrder = null;
+            if (orderColumn != null) {
+                sortOrder = orderColumn + (descending ? " desc" : " asc");
+                if (limit != -1) {
+                    sortOrder += " LIMIT " + limit;
+                }
+            }
+            return new Compiled(selection, sortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Shape)) {
+                return false;
+            }
+            Shape other = (Shape) o;
+            return hash == other.hash && descending == other.descending && limit == other.limit
+                    && Arrays.equals(columns, other.columns) && Arrays.equals(ops, other.ops)
+                    && ((orderColumn == null) ? other.orderColumn == null
+                            : orderColumn.equals(other.orderColumn));
+        }
+    }
+}
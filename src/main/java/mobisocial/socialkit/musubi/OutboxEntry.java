@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.net.Uri;
+
+/**
+ * An insertion as recorded in the {@link OutboxJournal}: the uri and
+ * values to insert, and how many times it has been replayed.
+ */
+final class OutboxEntry {
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_LONG = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_FLOAT = 5;
+    private static final byte TYPE_BOOLEAN = 6;
+    private static final byte TYPE_BLOB = 7;
+
+    final Uri uri;
+    final ContentValues cv;
+    final int attempts;
+
+    OutboxEntry(Uri uri, ContentValues cv, int attempts) {
+        this.uri = uri;
+        this.cv = cv;
+        this.attempts = attempts;
+    }
+
+    static byte[] encode(Uri uri, ContentValues cv, int attempts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(attempts);
+        writeString(out, uri.toString());
+        writeValues(out, cv);
+        return bytes.toByteArray();
+    }
+
+    static OutboxEntry decode(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int attempts = in.readInt();
+        Uri uri = Uri.parse(readString(in));
+        ContentValues cv = readValues(in);
+        return new OutboxEntry(uri, cv, attempts);
+    }
+
+    private static void writeValues(DataOutputStream out, ContentValues cv) throws IOException {
+        out.writeInt(cv.size());
+        for (Map.Entry<String, Object> entry : cv.valueSet()) {
+            out.writeUTF(entry.getKey());
+            Object value = entry.getValue();
+            if (value == null) {
+                out.writeByte(TYPE_NULL);
+            } else if (value instanceof String) {
+                out.writeByte(TYPE_STRING);
+                writeString(out, (String) value);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Integer) {
+                out.writeByte(TYPE_INT);
+                out.writeInt((Integer) value);
+            } else if (value instanceof Double) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble((Double) value);
+            } else if (value instanceof Float) {
+                out.writeByte(TYPE_FLOAT);
+                out.writeFloat((Float) value);
+            } else if (value instanceof Boolean) {
+                out.writeByte(TYPE_BOOLEAN);
+                out.writeBoolean((Boolean) value);
+            } else if (value instanceof byte[]) {
+                byte[] blob = (byte[]) value;
+                out.writeByte(TYPE_BLOB);
+                out.writeInt(blob.length);
+                out.write(blob);
+            } else {
+                throw new IOException("Can't journal " + value.getClass().getName()
+                        + " for " + entry.getKey());
+            }
+        }
+    }
+
+    // Unlike writeUTF, not limited to 64KB, which json may exceed.
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(ObjCodec.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, ObjCodec.UTF_8);
+    }
+
+    private static ContentValues readValues(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        ContentValues cv = new ContentValues();
+        for (int i = 0; i < size; i++) {
+            String key = in.readUTF();
+            byte type = in.readByte();
+            switch (type) {
+                case TYPE_NULL:
+                    cv.putNull(key);
+                    break;
+                case TYPE_STRING:
+                    cv.put(key, readString(in));
+                    break;
+                case TYPE_LONG:
+                    cv.put(key, in.readLong());
+                    break;
+                case TYPE_INT:
+                    cv.put(key, in.readInt());
+                    break;
+                case TYPE_DOUBLE:
+                    cv.put(key, in.readDouble());
+                    break;
+                case TYPE_FLOAT:
+                    cv.put(key, in.readFloat());
+                    break;
+                case TYPE_BOOLEAN:
+                    cv.put(key, in.readBoolean());
+                    break;
+                case TYPE_BLOB:
+                    byte[] blob = new byte[in.readInt()];
+                    in.readFully(blob);
+                    cv.put(key, blob);
+                    break;
+                default:
+                    throw new IOException("Unknown value type " + type);
+            }
+        }
+        return cv;
+    }
+}
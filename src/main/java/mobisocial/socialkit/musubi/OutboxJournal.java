@@ -0,0 +1,253 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of insertions queued on the provider thread, so
+ * that posts survive the process being killed. Each insertion is recorded,
+ * as an opaque body built by {@link OutboxEntry}, before it is queued, and
+ * acknowledged once it needs no replay; on the next start, recorded
+ * insertions without an acknowledgement are replayed. Delivery is at least
+ * once: an insertion made just before the process died may be replayed.
+ * <p>
+ * Records are written straight to the file, which is enough to outlive the
+ * process. Syncing to the storage device is left to the provider thread,
+ * which syncs once per batch, before inserting it; posts still waiting in
+ * the queue may be lost to a power failure. A record is a length, a CRC32
+ * and a body; a torn record at the tail is discarded when the journal is
+ * opened. The file is truncated whenever no insertion is outstanding.
+ */
+final class OutboxJournal {
+    static final String FILE_NAME = "socialkit-outbox";
+
+    private static final byte KIND_PUT = 1;
+    private static final byte KIND_ACK = 2;
+
+    private final File mFile;
+    private final ByteArrayOutputStream mRecordBuffer = new ByteArrayOutputStream(256);
+    private final CRC32 mCrc = new CRC32();
+    private FileOutputStream mOut;
+    private long mNextSeq = 1;
+    private int mOutstanding;
+    private boolean mUnsynced;
+    private long mDiscardedBytes;
+
+    /**
+     * An insertion recorded in the journal.
+     */
+    static final class Record {
+        final long seq;
+        final byte[] body;
+
+        Record(long seq, byte[] body) {
+            this.seq = seq;
+            this.body = body;
+        }
+    }
+
+    OutboxJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Reads the journal, discarding a torn tail, and opens it for appending.
+     * Returns the recorded insertions that were never acknowledged, in the
+     * order they were posted.
+     */
+    synchronized List<Record> open() throws IOException {
+        LinkedHashMap<Long, Record> pending = new LinkedHashMap<Long, Record>();
+        long validLength = 0;
+        if (mFile.exists()) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            try {
+                while (true) {
+                    byte[] body = readRecord(in);
+                    if (body == null) {
+                        break;
+                    }
+                    readBody(body, pending);
+                    validLength += 8 + body.length;
+                }
+            } finally {
+                in.close();
+            }
+            mDiscardedBytes = mFile.length() - validLength;
+            if (mDiscardedBytes > 0) {
+                RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+                try {
+                    file.setLength(validLength);
+                } finally {
+                    file.close();
+                }
+            }
+        }
+        mOutstanding = pending.size();
+        if (mOutstanding == 0 && validLength > 0) {
+            mOut = new FileOutputStream(mFile, false);
+        } else {
+            mOut = new FileOutputStream(mFile, true);
+        }
+        return new ArrayList<Record>(pending.values());
+    }
+
+    /**
+     * Returns the length of the torn or corrupt tail discarded by
+     * {@link #open()}.
+     */
+    synchronized long getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+
+    /**
+     * Returns the number of recorded insertions not yet acknowledged.
+     */
+    synchronized int getOutstanding() {
+        return mOutstanding;
+    }
+
+    /**
+     * Returns the next record body, or null at the end of the journal or at
+     * a torn or corrupt record.
+     */
+    private byte[] readRecord(DataInputStream in) throws IOException {
+        int length;
+        long crc;
+        byte[] body;
+        try {
+            length = in.readInt();
+            crc = in.readInt() & 0xffffffffL;
+            if (length <= 0 || length > mFile.length()) {
+                return null;
+            }
+            body = new byte[length];
+            in.readFully(body);
+        } catch (EOFException e) {
+            return null;
+        }
+        mCrc.reset();
+        mCrc.update(body, 0, body.length);
+        return (mCrc.getValue() == crc) ? body : null;
+    }
+
+    private void readBody(byte[] record, Map<Long, Record> pending) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte kind = in.readByte();
+        if (kind == KIND_PUT) {
+            long seq = in.readLong();
+            byte[] body = new byte[record.length - 9];
+            in.readFully(body);
+            pending.put(seq, new Record(seq, body));
+            mNextSeq = Math.max(mNextSeq, seq + 1);
+        } else if (kind == KIND_ACK) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                pending.remove(in.readLong());
+            }
+        } else {
+            throw new IOException("Unknown journal record " + kind);
+        }
+    }
+
+    /**
+     * Records an insertion, returning its sequence number.
+     */
+    synchronized long append(byte[] body) throws IOException {
+        long seq = mNextSeq;
+        mRecordBuffer.reset();
+        DataOutputStream out = new DataOutputStream(mRecordBuffer);
+        out.writeByte(KIND_PUT);
+        out.writeLong(seq);
+        out.write(body);
+        writeRecord();
+        mNextSeq++;
+        mOutstanding++;
+        return seq;
+    }
+
+    /**
+     * Records that the given insertions need no replay.
+     */
+    synchronized void ack(long[] seqs, int count) throws IOException {
+        if (count == 0) {
+            return;
+        }
+        mOutstanding -= count;
+        if (mOutstanding == 0) {
+            // Nothing left to replay.
+            mOut.getChannel().truncate(0);
+            mUnsynced = false;
+            return;
+        }
+        mRecordBuffer.reset();
+        DataOutputStream out = new DataOutputStream(mRecordBuffer);
+        out.writeByte(KIND_ACK);
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(seqs[i]);
+        }
+        writeRecord();
+    }
+
+    /**
+     * Forces records written since the last sync to the storage device.
+     */
+    synchronized void sync() throws IOException {
+        if (mUnsynced) {
+            mOut.getFD().sync();
+            mUnsynced = false;
+        }
+    }
+
+    /**
+     * Closes the file. The journal can't be used afterwards.
+     */
+    synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    private void writeRecord() throws IOException {
+        byte[] body = mRecordBuffer.toByteArray();
+        mCrc.reset();
+        mCrc.update(body, 0, body.length);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.length + 8);
+        DataOutputStream out = new DataOutputStream(record);
+        out.writeInt(body.length);
+        out.writeInt((int) mCrc.getValue());
+        out.write(body);
+        // A single write, so a killed process leaves at most one torn record.
+        mOut.write(record.toByteArray());
+        mUnsynced = true;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Arrays;
+
+/**
+ * The principal hash that identifies a user globally. Compares by value in
+ * constant time for distinct ids; the hex form used by
+ * {@link DbIdentity#getId()} is only built when asked for.
+ */
+public final class PrincipalId {
+    private final byte[] mHash;
+    private final long mShortHash;
+    private final int mHashCode;
+    private volatile String mHex;
+
+    private PrincipalId(byte[] hash) {
+        mHash = hash;
+        mShortHash = MusubiUtil.shortHash(hash);
+        mHashCode = (int) (mShortHash ^ (mShortHash >>> 32));
+    }
+
+    /**
+     * Returns the principal with the given hash.
+     */
+    public static PrincipalId fromBytes(byte[] hash) {
+        return new PrincipalId(hash.clone());
+    }
+
+    /**
+     * Returns the principal with the given hash, which the caller gives up.
+     */
+    static PrincipalId wrap(byte[] hash) {
+        return new PrincipalId(hash);
+    }
+
+    /**
+     * Returns the principal with the given hex-encoded hash, as returned by
+     * {@link DbIdentity#getId()}.
+     *
+     * @throws IllegalArgumentException if the string isn't an even number
+     *     of hex digits, or is too short to be a principal's hash.
+     */
+    public static PrincipalId fromHex(String hex) {
+        PrincipalId id = new PrincipalId(MusubiUtil.convertToByteArray(hex));
+        id.mHex = hex;
+        return id;
+    }
+
+    public byte[] toByteArray() {
+        return mHash.clone();
+    }
+
+    /**
+     * Returns the leading 8 bytes of the hash, as indexed by the provider.
+     */
+    public long getShortHash() {
+        return mShortHash;
+    }
+
+    public String toHex() {
+        String hex = mHex;
+        if (hex == null) {
+            hex = MusubiUtil.convertToHex(mHash);
+            mHex = hex;
+        }
+        return hex;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this) {
+            return true;
+        }
+        if (!(o instanceof PrincipalId)) {
+            return false;
+        }
+        PrincipalId other = (PrincipalId) o;
+        return mShortHash == other.mShortHash && Arrays.equals(mHash, other.mHash);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
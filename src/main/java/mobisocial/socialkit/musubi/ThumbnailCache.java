@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import mobisocial.socialkit.musubi.Musubi.DbThing;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * A least-recently-used cache of decoded identity thumbnails by local id,
+ * bounded by the memory the bitmaps hold. Thumbnails may be decoded at a
+ * reduced size, and loaded on a background thread with the result posted
+ * to the main thread. Identities without a thumbnail are cached too, so
+ * they aren't queried again until they change.
+ * <p>
+ * Entries are invalidated by changes to identities. From API level 16 a
+ * change names the identity, and only its entry is dropped; older platforms
+ * don't say which identity changed, so every identity write clears the
+ * whole cache. Those platforms see a low hit rate while identities are being
+ * synced, which {@link #getHitCount()} and {@link #getMissCount()} show.
+ */
+public final class ThumbnailCache {
+    private static final long DEFAULT_MAX_BYTES = 2 * 1024 * 1024;
+    // The budget charged for remembering that an identity has no thumbnail.
+    private static final long MISSING_ENTRY_BYTES = 64;
+
+    private final LinkedHashMap<Long, Entry> mEntries =
+            new LinkedHashMap<Long, Entry>(16, 0.75f, true);
+    private long mMaxBytes = DEFAULT_MAX_BYTES;
+    private long mBytes;
+    private long mGeneration;
+    private long mHits;
+    private long mMisses;
+    private long mEvictions;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mDecoder = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ThumbnailDecoder");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * Invalidates entries as identities change. Platforms that report the
+     * changed uri invalidate a single entry; older ones clear the cache, as
+     * any cached identity may be the one that changed.
+     */
+    final ContentObserver mObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            clear();
+        }
+
+        // Called in place of onChange(boolean) from API level 16.
+        public void onChange(boolean selfChange, Uri uri) {
+            if (uri == null || uri.getPathSegments().size() < 2) {
+                clear();
+                return;
+            }
+            try {
+                remove(ContentUris.parseId(uri));
+            } catch (NumberFormatException e) {
+                clear();
+            }
+        }
+    };
+
+    ThumbnailCache() {
+    }
+
+    /**
+     * Receives a thumbnail loaded in the background, on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param picture the thumbnail, or null if the identity has none.
+         */
+        public void onThumbnailLoaded(DbIdentity identity, Bitmap picture);
+    }
+
+    /**
+     * Returns the thumbnail of the given identity, decoding it on the calling
+     * thread if it is not cached. A requested width or height of zero or less
+     * leaves that dimension unconstrained; otherwise the image is subsampled
+     * by the largest power of two that keeps it at least as large as
+     * requested.
+     */
+    Bitmap get(Context context, long localId, int reqWidth, int reqHeight) {
+        long generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(localId);
+            if (entry != null && entry.satisfies(reqWidth, reqHeight)) {
+                mHits++;
+                return entry.bitmap;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+        Entry entry = decode(context, localId, reqWidth, reqHeight);
+        if (entry == null) {
+            return null;
+        }
+        synchronized (this) {
+            // Drop a decoding of an identity that changed while it was read.
+            if (generation != mGeneration) {
+                return entry.bitmap;
+            }
+            Entry old = mEntries.get(localId);
+            // Keep a larger decoding that was cached in the meantime.
+            if (old == null || old.sampleSize > entry.sampleSize) {
+                put(localId, entry);
+            }
+        }
+        return entry.bitmap;
+    }
+
+    /**
+     * Loads the thumbnail of the given identity on a background thread and
+     * delivers it to the callback on the main thread. A cached thumbnail is
+     * still delivered asynchronously.
+     */
+    void load(final Context context, final DbIdentity identity, final int reqWidth,
+            final int reqHeight, final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        mDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap picture = get(appContext, identity.getLocalId(), reqWidth,
+                        reqHeight);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onThumbnailLoaded(identity, picture);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Reads and decodes an identity's thumbnail, returning an entry with no
+     * bitmap if it has none, or null if the provider couldn't be read.
+     */
+    private static Entry decode(Context context, long localId, int reqWidth, int reqHeight) {
+        Uri uri = Musubi.uriForItem(DbThing.IDENTITY, localId);
+        String[] projection = new String[] { DbIdentity.COL_THUMBNAIL };
+        byte[] thumbnail = null;
+        Cursor c = context.getContentResolver().query(uri, projection, null, null, null);
+        if (c == null) {
+            return null;
+        }
+        try {
+            if (c.moveToFirst()) {
+                thumbnail = c.getBlob(0);
+            }
+        } finally {
+            c.close();
+        }
+        if (thumbnail == null) {
+            return Entry.MISSING;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+        int sourceWidth = options.outWidth;
+        int sourceHeight = options.outHeight;
+        int sampleSize = sampleSize(sourceWidth, sourceHeight, reqWidth, reqHeight);
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap bitmap = BitmapFactory.decodeByteArray(thumbnail, 0, thumbnail.length, options);
+        if (bitmap == null) {
+            // Undecodable until the identity changes, so remembered as missing.
+            return Entry.MISSING;
+        }
+        return new Entry(bitmap, sourceWidth, sourceHeight, sampleSize);
+    }
+
+    static int sampleSize(int sourceWidth, int sourceHeight, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 && reqHeight <= 0) {
+            return sampleSize;
+        }
+        while ((reqWidth <= 0 || sourceWidth / (sampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || sourceHeight / (sampleSize * 2) >= reqHeight)) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private void put(long localId, Entry entry) {
+        Entry old = mEntries.put(localId, entry);
+        if (old != null) {
+            mBytes -= old.size;
+        }
+        mBytes += entry.size;
+        trim();
+    }
+
+    synchronized void remove(long localId) {
+        mGeneration++;
+        Entry old = mEntries.remove(localId);
+        if (old != null) {
+            mBytes -= old.size;
+        }
+    }
+
+    /**
+     * Empties the cache. Statistics are kept.
+     */
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /**
+     * Sets the memory budget of this cache, evicting thumbnails as needed.
+     */
+    public synchronized void setMaxBytes(long maxBytes) {
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    private void trim() {
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while (mBytes > mMaxBytes && eldest.hasNext()) {
+            mBytes -= eldest.next().size;
+            eldest.remove();
+            mEvictions++;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns the memory held by cached bitmaps.
+     */
+    public synchronized long sizeInBytes() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "[thumbnail cache size:" + mEntries.size() + ", bytes:" + mBytes + ", hits:"
+                + mHits + ", misses:" + mMisses + ", evictions:" + mEvictions + "]";
+    }
+
+    private static final class Entry {
+        // An identity with no thumbnail.
+        static final Entry MISSING = new Entry();
+
+        final Bitmap bitmap;
+        final int sourceWidth;
+        final int sourceHeight;
+        final int sampleSize;
+        final long size;
+
+        Entry(Bitmap bitmap, int sourceWidth, int sourceHeight, int sampleSize) {
+            this.bitmap = bitmap;
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            this.sampleSize = sampleSize;
+            this.size = (long) bitmap.getRowBytes() * bitmap.getHeight();
+        }
+
+        private Entry() {
+            this.bitmap = null;
+            this.sourceWidth = 0;
+            this.sourceHeight = 0;
+            this.sampleSize = 1;
+            this.size = MISSING_ENTRY_BYTES;
+        }
+
+        /**
+         * Whether this decoding is at least as detailed as a request needs.
+         */
+        boolean satisfies(int reqWidth, int reqHeight) {
+            return bitmap == null
+                    || sampleSize <= sampleSize(sourceWidth, sourceHeight, reqWidth, reqHeight);
+        }
+    }
+}
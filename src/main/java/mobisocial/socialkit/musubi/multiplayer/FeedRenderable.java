@@ -52,6 +52,13 @@ public class FeedRenderable {
         return json;
     }
 
+    /**
+     * Returns the fields of this renderable as a new json object.
+     */
+    public JSONObject toJson() {
+        return addToJson(new JSONObject());
+    }
+
     public static FeedRenderable fromHtml(String html) {
         FeedRenderable r = new FeedRenderable();
         r.mHtml = html;
@@ -2,11 +2,15 @@ package mobisocial.socialkit.musubi.multiplayer;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import mobisocial.socialkit.User;
 import mobisocial.socialkit.musubi.DbFeed;
+import mobisocial.socialkit.musubi.DbIdentity;
+import mobisocial.socialkit.musubi.CursorObjView;
 import mobisocial.socialkit.musubi.DbObj;
 import mobisocial.socialkit.musubi.Musubi;
+import mobisocial.socialkit.musubi.ObjQuery;
 import mobisocial.socialkit.obj.MemObj;
 
 import org.json.JSONObject;
@@ -55,20 +59,34 @@ public class HighScoreList {
      * Returns the list of high scores, sorted by descending score.
      */
     public List<HighScore> getHighScores() {
-        String[] projection = null;
-        String selection = DbObj.COL_TYPE + " = ?";
-        String[] selectionArgs = new String[] { TYPE_HIGHSCORE };
-        String sortOrder = DbObj.COL_INT_KEY + " desc";
-        Cursor c = mFeed.query(projection, selection, selectionArgs, sortOrder);
-        ArrayList<HighScore> scores = new ArrayList<HighScore>(c.getCount());
-        if (c.moveToFirst()) {
-            while (!c.isAfterLast()) {
-                DbObj obj = mMusubi.objForCursor(c);
+        Cursor c = ObjQuery.where(DbObj.COL_TYPE).eq(TYPE_HIGHSCORE)
+                .orderByDesc(DbObj.COL_INT_KEY)
+                .query(mFeed, DbObj.Projection.DEFAULT.getColumns());
+        try {
+            ArrayList<HighScore> scores = new ArrayList<HighScore>(c.getCount());
+            CursorObjView obj = new CursorObjView(mMusubi, c);
+            while (c.moveToNext()) {
                 scores.add(new HighScore(obj));
-                c.moveToNext();
             }
+            prefetchUsers(scores);
+            return scores;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Resolves the users of all the given scores in a fixed number of queries.
+     */
+    private void prefetchUsers(List<HighScore> scores) {
+        long[] userIds = new long[scores.size()];
+        for (int i = 0; i < userIds.length; i++) {
+            userIds[i] = scores.get(i).mUserId;
+        }
+        Map<Long, DbIdentity> users = mMusubi.usersForLocalIds(userIds);
+        for (HighScore score : scores) {
+            score.mUser = users.get(score.mUserId);
         }
-        return scores;
     }
 
     /**
@@ -80,15 +98,20 @@ public class HighScoreList {
         private final int mScore;
         private final JSONObject mMeta;
         private final long mTimestamp;
+        private DbIdentity mUser;
 
-        private HighScore(DbObj obj) {
-            mUserId = obj.getSender().getLocalId();
-            mScore = obj.getIntKey();
+        private HighScore(CursorObjView obj) {
+            mUserId = obj.getSenderId();
+            Integer score = obj.getIntKey();
+            mScore = (score == null) ? 0 : score;
             mMeta = obj.getJson();
             mTimestamp = obj.getTimestamp();
         }
         public User getUser() {
-            return mMusubi.userForLocalId(mFeed.getUri(), mUserId);
+            if (mUser == null) {
+                mUser = mMusubi.userForLocalId(mFeed.getUri(), mUserId);
+            }
+            return mUser;
         }
 
         public int getScore() {
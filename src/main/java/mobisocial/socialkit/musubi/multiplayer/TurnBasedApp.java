@@ -17,23 +17,26 @@
 package mobisocial.socialkit.musubi.multiplayer;
 
 import java.util.List;
+import java.util.concurrent.Executor;
 
 import mobisocial.socialkit.Obj;
 import mobisocial.socialkit.User;
 import mobisocial.socialkit.musubi.DbFeed;
 import mobisocial.socialkit.musubi.DbIdentity;
 import mobisocial.socialkit.musubi.DbObj;
+import mobisocial.socialkit.musubi.DebouncedContentObserver;
 import mobisocial.socialkit.musubi.Musubi;
+import mobisocial.socialkit.musubi.ObjQuery;
+import mobisocial.socialkit.musubi.PrincipalId;
+import mobisocial.socialkit.obj.AppStateObj;
 import mobisocial.socialkit.obj.MemObj;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.database.ContentObserver;
 import android.database.Cursor;
 import android.net.Uri;
-import android.os.Handler;
 import android.util.Log;
 
 /**
@@ -58,17 +61,23 @@ public abstract class TurnBasedApp extends Multiplayer {
     static final String TYPE_INTERRUPT_REQUEST = "interrupt";
 
     private final Musubi mMusubi;
-    private final ContentObserver mObserver;
+    private final TurnObserver mObserver;
     private final DbObj mObjContext;
     private final DbFeed mDbFeed;
-    private final String mLocalMember;
-    private boolean mObservingUpdates;
+    private final PrincipalId mLocalMember;
+    private volatile boolean mObservingUpdates;
 
+    // Guards the turn state below, which explicit reads and observer
+    // deliveries may update from different threads.
+    private final Object mStateLock = new Object();
     private JSONObject mLatestState;
     private String[] mMembers;
+    private PrincipalId[] mMemberIds;
     private int mLocalMemberIndex;
     private int mGlobalMemberCursor;
     private int mLastTurn = NO_TURN;
+    private int mKeepTurns;
+    private int mCompactedBelow = NO_TURN;
 
     /**
      * Prepares a new TurnBasedApp object that can be inserted into a feed.
@@ -100,49 +109,80 @@ public abstract class TurnBasedApp extends Multiplayer {
         mMusubi = musubi;
         mObjContext = objContext;
         mDbFeed = mObjContext.getSubfeed();
-        mObserver = new TurnObserver(new Handler(mMusubi.getContext().getMainLooper()));
-        mLocalMember = mDbFeed.getLocalUser().getId();
+        mObserver = new TurnObserver();
+        mLocalMember = mDbFeed.getLocalUser().getPrincipalId();
     }
 
     DbObj fetchLatestState() {
-        String[] projection = null;
-        String selection = "type = ?";
-        String[] args = new String[] { TYPE_APP_STATE };
-        String sortOrder = DbObj.COL_INT_KEY + " desc LIMIT 1";
-        Cursor cursor = mDbFeed.query(projection, selection, args, sortOrder);
-        if (cursor != null && cursor.moveToFirst()) {
-            try {
-                return mMusubi.objForCursor(cursor);
-            } finally {
-                cursor.close();
-            }
-        }
-        return null;
+        // Only the state machine reads app states, so the header is skipped.
+        return fetchLatest(TYPE_APP_STATE, DbObj.Projection.STATE);
     }
 
     DbObj fetchLatestInterrupt() {
-        String[] projection = null;
-        String selection = "type = ?";
-        String[] args = new String[] { TYPE_INTERRUPT_REQUEST };
-        String sortOrder = DbObj.COL_INT_KEY + " desc LIMIT 1";
-        Cursor cursor = mDbFeed.query(projection, selection, args, sortOrder);
-        if (cursor != null && cursor.moveToFirst()) {
-            try {
-                return mMusubi.objForCursor(cursor);
-            } finally {
-                cursor.close();
+        // Interrupts are handed to handleInterrupt, which may read any field.
+        return fetchLatest(TYPE_INTERRUPT_REQUEST, DbObj.Projection.DEFAULT);
+    }
+
+    private DbObj fetchLatest(String type, DbObj.Projection projection) {
+        Cursor cursor = ObjQuery.where(DbObj.COL_TYPE).eq(type)
+                .orderByDesc(DbObj.COL_INT_KEY).limit(1)
+                .query(mDbFeed, projection.getColumns());
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return cursor.moveToFirst() ? mMusubi.objForCursor(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Keeps only the app states and interrupts of the latest keepTurns turns.
+     * Whenever a newer turn is seen, objects from older turns are deleted
+     * from this app's subfeed in the background. Readers only use the
+     * latest state, so this keeps the subfeed, and the queries over it, a
+     * bounded size however long a game runs. Zero, the default, keeps every
+     * turn.
+     */
+    public void setCompaction(int keepTurns) {
+        if (keepTurns < 0) {
+            throw new IllegalArgumentException("Can't keep " + keepTurns + " turns");
+        }
+        synchronized (mStateLock) {
+            mKeepTurns = keepTurns;
+            if (keepTurns > 0 && mLastTurn != NO_TURN) {
+                compact(mLastTurn);
             }
         }
-        return null;
+    }
+
+    // Called with mStateLock held.
+    private void compact(int latestTurn) {
+        if (mKeepTurns == 0) {
+            return;
+        }
+        int oldestKept = latestTurn - mKeepTurns + 1;
+        if (oldestKept <= mCompactedBelow) {
+            return;
+        }
+        mCompactedBelow = oldestKept;
+        if (DBG) Log.d(TAG, "Compacting turns before " + oldestKept);
+        mDbFeed.deleteObjs(ObjQuery.where(DbObj.COL_TYPE).eq(TYPE_APP_STATE)
+                .and(DbObj.COL_INT_KEY).lt(oldestKept));
+        mDbFeed.deleteObjs(ObjQuery.where(DbObj.COL_TYPE).eq(TYPE_INTERRUPT_REQUEST)
+                .and(DbObj.COL_INT_KEY).lt(oldestKept));
     }
 
     /**
-     * Often called in an activity's onResume method.
+     * Often called in an activity's onResume method. The current state is
+     * loaded before returning, on the observer thread, so the app's state
+     * can be read at once; later changes are delivered in the background.
      */
     public void enableStateUpdates() {
         Uri uri = mDbFeed.getUri();
         mMusubi.getContext().getContentResolver().registerContentObserver(uri, false, mObserver);
-        mObserver.onChange(false); // keep getLatestState() synchronized
+        mObserver.update(); // keep getLatestState() synchronized
         mObservingUpdates = true;
     }
 
@@ -154,6 +194,24 @@ public abstract class TurnBasedApp extends Multiplayer {
         mObservingUpdates = false;
     }
 
+    /**
+     * Sets the executor that state updates and interrupts are handled on.
+     * By default they are handled on the main thread; the subfeed is
+     * queried in the background either way.
+     */
+    public void setObserverExecutor(Executor executor) {
+        mObserver.setCallbackExecutor(executor);
+    }
+
+    /**
+     * Sets how long changes to the subfeed are collected for before the
+     * state is refreshed. Defaults to
+     * {@link DebouncedContentObserver#DEFAULT_DEBOUNCE_MILLIS}.
+     */
+    public void setObserverDebounce(long millis) {
+        mObserver.setDebounceMillis(millis);
+    }
+
     @Override
     public User getLocalUser() {
         return mDbFeed.getLocalUser();
@@ -164,14 +222,28 @@ public abstract class TurnBasedApp extends Multiplayer {
      */
     protected abstract FeedRenderable getFeedView(JSONObject state);
 
-    private void setMembershipFromJson(JSONArray memberArr) {
-        mMembers = new String[memberArr.length()];
-        for (int i = 0; i < memberArr.length(); i++) {
-            mMembers[i] = memberArr.optString(i);
-            if (mMembers[i].equals(mLocalMember)) {
-                mLocalMemberIndex = i;
+    /**
+     * Replaces the membership, or leaves it unchanged and throws if any
+     * member id is malformed. Called with mStateLock held.
+     */
+    private void setMembershipFromJson(JSONArray memberArr) throws JSONException {
+        String[] members = new String[memberArr.length()];
+        PrincipalId[] memberIds = new PrincipalId[members.length];
+        int localMemberIndex = -1;
+        for (int i = 0; i < members.length; i++) {
+            members[i] = memberArr.optString(i);
+            try {
+                memberIds[i] = PrincipalId.fromHex(members[i]);
+            } catch (IllegalArgumentException e) {
+                throw new JSONException("Bad member id " + members[i]);
+            }
+            if (memberIds[i].equals(mLocalMember)) {
+                localMemberIndex = i;
             }
         }
+        mMembers = members;
+        mMemberIds = memberIds;
+        mLocalMemberIndex = localMemberIndex;
     }
 
     /**
@@ -179,7 +251,9 @@ public abstract class TurnBasedApp extends Multiplayer {
      * local user.
      */
     public int getLocalMemberIndex() {
-        return mLocalMemberIndex;
+        synchronized (mStateLock) {
+            return mLocalMemberIndex;
+        }
     }
 
     /**
@@ -187,7 +261,9 @@ public abstract class TurnBasedApp extends Multiplayer {
      * the user with control of the state machine.
      */
     public int getGlobalMemberCursor() {
-        return mGlobalMemberCursor;
+        synchronized (mStateLock) {
+            return mGlobalMemberCursor;
+        }
     }
 
     /**
@@ -195,13 +271,21 @@ public abstract class TurnBasedApp extends Multiplayer {
      * In other words, its the local user's turn.
      */
     public boolean isMyTurn() {
-        if (mGlobalMemberCursor < 0 || mGlobalMemberCursor >= mMembers.length) {
-            throw new IllegalStateException("Invalid global member cursor");
+        int cursor;
+        String member;
+        PrincipalId memberId;
+        synchronized (mStateLock) {
+            cursor = mGlobalMemberCursor;
+            if (cursor < 0 || cursor >= mMembers.length) {
+                throw new IllegalStateException("Invalid global member cursor");
+            }
+            member = mMembers[cursor];
+            memberId = mMemberIds[cursor];
         }
-        DbIdentity potential = mDbFeed.userForGlobalId(mMembers[mGlobalMemberCursor]);
+        DbIdentity potential = mDbFeed.userForPrincipal(memberId);
         if (potential == null) {
             throw new IllegalStateException("app member not a feed member " +
-                    "#" + mGlobalMemberCursor + "=" + mMembers[mGlobalMemberCursor]);
+                    "#" + cursor + "=" + member);
         }
         return potential.isOwned();
     }
@@ -218,14 +302,15 @@ public abstract class TurnBasedApp extends Multiplayer {
      */
     public void takeTurnOutOfOrder(JSONArray members, int nextPlayer, JSONObject state) {
         getLatestState(); // force update
+        int lastTurn = getLastTurnNumber();
         JSONObject out = new JSONObject();
         try {
             out.put(OBJ_MEMBER_CURSOR, nextPlayer);
             out.put(OBJ_MEMBERSHIP, members);
             out.put(OBJ_STATE, state);
 
-            if (DBG) Log.d(TAG, "Attempted interrupt #" + mLastTurn);
-            mDbFeed.postObj(new MemObj(TYPE_INTERRUPT_REQUEST, out, null, mLastTurn));
+            if (DBG) Log.d(TAG, "Attempted interrupt #" + lastTurn);
+            mDbFeed.postObj(new MemObj(TYPE_INTERRUPT_REQUEST, out, null, lastTurn));
         } catch (JSONException e) {
             Log.e(TAG, "Failed to update cursor.", e);
         }
@@ -238,11 +323,13 @@ public abstract class TurnBasedApp extends Multiplayer {
         }
         JSONObject out = new JSONObject();
         try {
-            mGlobalMemberCursor = nextPlayer; 
-            out.put(OBJ_MEMBER_CURSOR, mGlobalMemberCursor);
+            out.put(OBJ_MEMBER_CURSOR, nextPlayer);
             out.put(OBJ_MEMBERSHIP, members);
             out.put(OBJ_STATE, state);
-            mLatestState = state;
+            synchronized (mStateLock) {
+                mGlobalMemberCursor = nextPlayer;
+                mLatestState = state;
+            }
 
             postAppStateRenderable(out, getFeedView(state));
             if (DBG) Log.d(TAG, "Sent cursor " + out.optInt(OBJ_MEMBER_CURSOR));
@@ -270,7 +357,10 @@ public abstract class TurnBasedApp extends Multiplayer {
      * @return true if a turn was taken.
      */
     public boolean takeTurn(JSONObject state) {
-        int next = (mGlobalMemberCursor + 1) % mMembers.length;
+        int next;
+        synchronized (mStateLock) {
+            next = (mGlobalMemberCursor + 1) % mMembers.length;
+        }
         return takeTurn(next, state);
     }
 
@@ -285,7 +375,7 @@ public abstract class TurnBasedApp extends Multiplayer {
 
     public JSONArray membersJsonArray() {
         JSONArray r = new JSONArray();
-        for (String m : mMembers) {
+        for (String m : getMembers()) {
             r.put(m);
         }
         return r;
@@ -296,16 +386,20 @@ public abstract class TurnBasedApp extends Multiplayer {
      */
     public JSONObject getLatestState() {
         if (!mObservingUpdates) {
-            mObserver.onChange(false);
+            mObserver.update();
+        }
+        synchronized (mStateLock) {
+            return mLatestState;
         }
-        return mLatestState;
     }
 
     public int getLastTurnNumber() {
         if (!mObservingUpdates) {
-            mObserver.onChange(false);
+            mObserver.update();
+        }
+        synchronized (mStateLock) {
+            return mLastTurn;
         }
-        return mLastTurn;
     }
 
     /**
@@ -340,40 +434,90 @@ public abstract class TurnBasedApp extends Multiplayer {
      * Returns the array of member identifiers.
      */
     public String[] getMembers() {
-        return mMembers;
+        synchronized (mStateLock) {
+            return mMembers;
+        }
     }
 
     public DbIdentity getUser(int memberIndex) {
-        return mDbFeed.userForGlobalId(mMembers[memberIndex]);
+        PrincipalId memberId;
+        synchronized (mStateLock) {
+            memberId = mMemberIds[memberIndex];
+        }
+        return mDbFeed.userForPrincipal(memberId);
     }
 
     private void postAppStateRenderable(JSONObject state, FeedRenderable thumbnail) {
-        try {
-            JSONObject b = new JSONObject(state.toString());
-            if (thumbnail != null) {
-                thumbnail.addToJson(b);
-            }
-            mDbFeed.postObj(new MemObj(TYPE_APP_STATE, b, null, mLastTurn + 1));
-        } catch (JSONException e) {}
+        int nextTurn;
+        synchronized (mStateLock) {
+            nextTurn = mLastTurn + 1;
+        }
+        // The renderable is merged over the state as the obj is encoded,
+        // so neither is copied or modified.
+        mDbFeed.postObj(new AppStateObj(state, thumbnail, nextTurn));
+    }
+
+    /**
+     * The latest app state and interrupt read from the subfeed.
+     */
+    static class Latest {
+        final DbObj state;
+        final DbObj interrupt;
+
+        Latest(DbObj state, DbObj interrupt) {
+            this.state = state;
+            this.interrupt = interrupt;
+        }
     }
 
     /**
      * Monitors this turn-based app's subfeed for state updates and populates related
-     * state member variables.
+     * state member variables. The subfeed is read in the background; updates
+     * are applied on the observer executor, or by an explicit read on the
+     * reading thread, under mStateLock. Callbacks run without the lock.
      */
-    class TurnObserver extends ContentObserver {
-        public TurnObserver(Handler handler) {
-            super(handler);
+    class TurnObserver extends DebouncedContentObserver<Latest> {
+        public TurnObserver() {
+            super(mMusubi.getContext());
+        }
+
+        @Override
+        protected Latest query() {
+            return new Latest(fetchLatestState(), fetchLatestInterrupt());
         }
 
         @Override
-        public void onChange(boolean selfChange) {
-            updateState(selfChange);
-            attemptInterrupt();
+        protected void deliver(Latest latest) {
+            if (!mObservingUpdates) {
+                return;
+            }
+            apply(latest);
         }
 
-        void updateState(boolean explicitRequest) {
-            DbObj obj = fetchLatestState();
+        /**
+         * Reads the latest state on the background thread and applies it on
+         * the calling thread.
+         */
+        void update() {
+            apply(queryAndWait());
+        }
+
+        private void apply(Latest latest) {
+            JSONObject updated;
+            synchronized (mStateLock) {
+                updated = updateState(latest.state);
+            }
+            if (updated != null) {
+                onStateUpdate(updated);
+            }
+            attemptInterrupt(latest.interrupt);
+        }
+
+        /**
+         * Applies an app state, returning the new state if the turn advanced
+         * or null otherwise. Called with mStateLock held.
+         */
+        private JSONObject updateState(DbObj obj) {
             if (DBG) Log.e(TAG, "fetched " + obj);
             if (obj == null) {
                 obj = mObjContext;
@@ -383,32 +527,34 @@ public abstract class TurnBasedApp extends Multiplayer {
             if (json == null || !json.has(OBJ_MEMBERSHIP)) {
                 if (DBG) Log.e(TAG, "App state has no membership.");
                 mMembers = null;
+                mMemberIds = null;
                 mLocalMemberIndex = -1;
                 mGlobalMemberCursor = 0;
-                return;
+                return null;
             }
             try {
                 setMembershipFromJson(json.getJSONArray(OBJ_MEMBERSHIP));
             } catch (JSONException e) {
                 Log.e(TAG, "Error parsing membership", e);
-                return;
+                return null;
             }
 
             Integer turnTaken = obj.getIntKey();
             if (turnTaken == null) {
                 if (DBG) Log.e(TAG, "no turn taken.");
-                return;
+                return null;
             }
 
             if (mLastTurn != NO_TURN && turnTaken <= mLastTurn) {
                 if (DBG) Log.d(TAG, "Turn " + turnTaken + " is at/before known turn " + mLastTurn);
-                return;
+                return null;
             }
             mLastTurn = turnTaken;
+            compact(turnTaken);
             JSONObject newState = obj.getJson();
             if (newState == null || !newState.has(OBJ_STATE)) {
                 if (DBG) Log.w(TAG, "No state for update " + obj);
-                return;
+                return null;
             }
             try {
                 mLatestState = newState.optJSONObject(OBJ_STATE);
@@ -418,19 +564,18 @@ public abstract class TurnBasedApp extends Multiplayer {
                 Log.e(TAG, "Failed to get member_cursor from " + newState);
             }
 
-            if (!explicitRequest) {
-                onStateUpdate(mLatestState);
-            }
+            return mLatestState;
         }
 
-        void attemptInterrupt() {
-            DbObj interrupt = fetchLatestInterrupt();
+        void attemptInterrupt(DbObj interrupt) {
             if (interrupt == null) {
                 return;
             }
             Integer turnRequested = interrupt.getIntKey();
-            if (turnRequested == null || turnRequested < mLastTurn) {
-                return;
+            synchronized (mStateLock) {
+                if (turnRequested == null || turnRequested < mLastTurn) {
+                    return;
+                }
             }
             handleInterrupt(turnRequested, interrupt);
         }
@@ -1,7 +1,10 @@
 package mobisocial.socialkit.obj;
 
+import java.util.Iterator;
+
 import mobisocial.socialkit.musubi.multiplayer.FeedRenderable;
 
+import org.json.JSONException;
 import org.json.JSONObject;
 
 public class AppStateObj extends MemObj {
@@ -17,21 +20,37 @@ public class AppStateObj extends MemObj {
     }
 
     public AppStateObj(JSONObject data, FeedRenderable renderable) {
-        super(TYPE);
+        this(data, renderable, null);
+    }
+
+    public AppStateObj(JSONObject data, FeedRenderable renderable, Integer intKey) {
+        super(TYPE, null, null, intKey);
         mAppRenderable = renderable;
         mAppData = data;
     }
 
+    /**
+     * Returns the app data with the renderable's fields merged in. The data
+     * itself is left unmodified.
+     */
     @Override
     public JSONObject getJson() {
         FeedRenderable renderable = getAppRenderable();
         if (renderable == null) {
             return getAppData();
         }
+        JSONObject merged = new JSONObject();
         JSONObject data = getAppData();
-        if (data == null) {
-            data = new JSONObject();
+        if (data != null) {
+            Iterator<?> keys = data.keys();
+            while (keys.hasNext()) {
+                String key = (String) keys.next();
+                try {
+                    merged.put(key, data.opt(key));
+                } catch (JSONException e) {
+                }
+            }
         }
-        return renderable.addToJson(data) ;
+        return renderable.addToJson(merged);
     }
 }
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+public class BinaryObjCodecTest {
+    @Test
+    public void roundTripsScalars() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("zero", 0);
+        json.put("fixint", 127);
+        json.put("negative", -32);
+        json.put("int32", 100000);
+        json.put("minInt", Integer.MIN_VALUE);
+        json.put("int64", 1L << 40);
+        json.put("double", 2.5);
+        json.put("true", true);
+        json.put("false", false);
+        json.put("null", JSONObject.NULL);
+        json.put("empty", "");
+
+        JSONObject decoded = roundTrip(json);
+        assertEquals(json.length(), decoded.length());
+        assertEquals(0, decoded.getInt("zero"));
+        assertEquals(127, decoded.getInt("fixint"));
+        assertEquals(-32, decoded.getInt("negative"));
+        assertEquals(100000, decoded.getInt("int32"));
+        assertEquals(Integer.MIN_VALUE, decoded.getInt("minInt"));
+        assertEquals(1L << 40, decoded.getLong("int64"));
+        assertEquals(2.5, decoded.getDouble("double"), 0);
+        assertTrue(decoded.getBoolean("true"));
+        assertFalse(decoded.getBoolean("false"));
+        assertTrue(decoded.isNull("null"));
+        assertEquals("", decoded.getString("empty"));
+    }
+
+    @Test
+    public void roundTripsStringsOfEveryLengthClass() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("fix", repeat('a', 31));
+        json.put("str8", repeat('b', 255));
+        json.put("str16", repeat('c', 70000 / 2));
+        json.put("str32", repeat('d', 70000));
+        json.put("unicode", "caf\u00e9 \u6f22\u5b57 \ud83d\ude00");
+
+        JSONObject decoded = roundTrip(json);
+        for (String key : new String[] { "fix", "str8", "str16", "str32", "unicode" }) {
+            assertEquals(key, json.getString(key), decoded.getString(key));
+        }
+    }
+
+    @Test
+    public void roundTripsNestedAndLargeContainers() throws JSONException {
+        JSONArray small = new JSONArray();
+        small.put(1).put("two").put(JSONObject.NULL);
+        JSONArray large = new JSONArray();
+        for (int i = 0; i < 20; i++) {
+            large.put(i);
+        }
+        JSONObject inner = new JSONObject();
+        inner.put("small", small);
+        JSONObject json = new JSONObject();
+        json.put("inner", inner);
+        json.put("large", large);
+        for (int i = 0; i < 20; i++) {
+            json.put("field" + i, i);
+        }
+
+        JSONObject decoded = roundTrip(json);
+        assertEquals(22, decoded.length());
+        JSONArray decodedSmall = decoded.getJSONObject("inner").getJSONArray("small");
+        assertEquals(3, decodedSmall.length());
+        assertEquals(1, decodedSmall.getInt(0));
+        assertEquals("two", decodedSmall.getString(1));
+        assertTrue(decodedSmall.isNull(2));
+        JSONArray decodedLarge = decoded.getJSONArray("large");
+        assertEquals(20, decodedLarge.length());
+        assertEquals(19, decodedLarge.getInt(19));
+        assertEquals(19, decoded.getInt("field19"));
+    }
+
+    @Test
+    public void mergesOverlayAsItEncodes() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("kept", 1);
+        json.put("replaced", "old");
+        JSONObject overlay = new JSONObject();
+        overlay.put("replaced", "new");
+        overlay.put("added", true);
+
+        JSONObject decoded = BinaryObjCodec.decodeObject(BinaryObjCodec.encode(json, overlay));
+        assertEquals(3, decoded.length());
+        assertEquals(1, decoded.getInt("kept"));
+        assertEquals("new", decoded.getString("replaced"));
+        assertTrue(decoded.getBoolean("added"));
+        assertEquals(2, json.length());
+    }
+
+    @Test
+    public void decodeReadsBothEncodings() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("a", 1);
+        byte[] binary = BinaryObjCodec.encode(json);
+        byte[] text = "{\"a\":1}".getBytes(ObjCodec.UTF_8);
+
+        assertTrue(BinaryObjCodec.isBinary(binary));
+        assertFalse(BinaryObjCodec.isBinary(text));
+        assertEquals(1, ObjCodec.decode(binary).getInt("a"));
+        assertEquals(1, ObjCodec.decode(text).getInt("a"));
+        assertNull(ObjCodec.decode(null));
+    }
+
+    @Test(expected = JSONException.class)
+    public void truncatedEncodingThrows() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("key", "value");
+        byte[] binary = BinaryObjCodec.encode(json);
+        BinaryObjCodec.decodeObject(Arrays.copyOf(binary, binary.length - 1));
+    }
+
+    @Test
+    public void decodeRawRejectsForeignPayloads() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("key", "value");
+        byte[] binary = BinaryObjCodec.encode(json);
+
+        assertEquals("value", BinaryObjCodec.decodeRaw(binary).getString("key"));
+        assertNull(BinaryObjCodec.decodeRaw(new byte[] { (byte) 0xff, (byte) 0xd8 }));
+        assertNull(BinaryObjCodec.decodeRaw(new byte[0]));
+        assertNull(BinaryObjCodec.decodeRaw(Arrays.copyOf(binary, binary.length - 1)));
+        assertNull(BinaryObjCodec.decodeRaw(Arrays.copyOf(binary, binary.length + 1)));
+        // The marker followed by something other than a map.
+        assertNull(BinaryObjCodec.decodeRaw(new byte[] { BinaryObjCodec.MARKER, 0x01 }));
+    }
+
+    private static JSONObject roundTrip(JSONObject json) throws JSONException {
+        return BinaryObjCodec.decodeObject(BinaryObjCodec.encode(json));
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
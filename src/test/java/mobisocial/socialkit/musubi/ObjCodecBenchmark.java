@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Compares the json text and binary codecs on a game-state object: encoded
+ * size, and time to encode and decode. Run with
+ * {@code java -cp <test and main classes, org.json> mobisocial.socialkit.musubi.ObjCodecBenchmark [iterations]}.
+ * Not run by the test suite; timings on a desktop JVM only indicate the
+ * relative cost on a device.
+ */
+public class ObjCodecBenchmark {
+    private static final int DEFAULT_ITERATIONS = 20000;
+
+    // Keeps results live so the work isn't optimized away.
+    private static int sSink;
+
+    public static void main(String[] args) throws JSONException {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS;
+        JSONObject state = gameState();
+        String text = JsonTextWriter.write(state, null);
+        byte[] textBytes = text.getBytes(ObjCodec.UTF_8);
+        byte[] binary = BinaryObjCodec.encode(state);
+
+        System.out.println("encoded bytes: text " + textBytes.length + ", binary "
+                + binary.length);
+        // The first pass warms up the JIT; the second is reported.
+        for (int pass = 0; pass < 2; pass++) {
+            boolean report = pass == 1;
+            time("encode text", iterations, report, new Op() {
+                @Override
+                public int run(JSONObject json) {
+                    return JsonTextWriter.write(json, null).length();
+                }
+            }, state);
+            time("encode binary", iterations, report, new Op() {
+                @Override
+                public int run(JSONObject json) {
+                    return BinaryObjCodec.encode(json).length;
+                }
+            }, state);
+            final byte[] storedText = textBytes;
+            time("decode text", iterations, report, new Op() {
+                @Override
+                public int run(JSONObject json) throws JSONException {
+                    return ObjCodec.decode(storedText).length();
+                }
+            }, state);
+            final byte[] storedBinary = binary;
+            time("decode binary", iterations, report, new Op() {
+                @Override
+                public int run(JSONObject json) throws JSONException {
+                    return ObjCodec.decode(storedBinary).length();
+                }
+            }, state);
+        }
+        System.out.println("(checksum " + sSink + ")");
+    }
+
+    private interface Op {
+        int run(JSONObject json) throws JSONException;
+    }
+
+    private static void time(String name, int iterations, boolean report, Op op,
+            JSONObject json) throws JSONException {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            sSink += op.run(json);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (report) {
+            System.out.println(name + ": " + (elapsed / iterations) + " ns/op");
+        }
+    }
+
+    /**
+     * A turn-based game's state: a board, the members, and a few counters.
+     */
+    static JSONObject gameState() throws JSONException {
+        JSONArray board = new JSONArray();
+        for (int row = 0; row < 8; row++) {
+            JSONArray cells = new JSONArray();
+            for (int col = 0; col < 8; col++) {
+                cells.put((row * 8 + col) % 3);
+            }
+            board.put(cells);
+        }
+        JSONArray members = new JSONArray();
+        for (int i = 0; i < 4; i++) {
+            members.put("5f2b9c8e4d3a1b7c6e0f9a8b7c6d5e4f3a2b1c0d9e8f7a6b5c4d3e2f1a0b9c8" + i);
+        }
+        JSONObject state = new JSONObject();
+        state.put("board", board);
+        state.put("members", members);
+        state.put("turn", 37);
+        state.put("started", 1325376000000L);
+        state.put("score", 12.5);
+        state.put("over", false);
+        state.put("lastMove", "e2-e4");
+        return state;
+    }
+}
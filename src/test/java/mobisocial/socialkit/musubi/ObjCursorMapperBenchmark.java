@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+/**
+ * Measures rows decoded per second from an in-memory cursor with the
+ * {@link DbObj.Projection#DEFAULT} columns, by {@link ObjCursorMapper} and
+ * by resolving every column by name on every row. Needs the Android
+ * runtime, as {@link DbObj} and the cursor are framework classes; push the
+ * test classes to a device as a dex jar and run, for example,
+ * {@code adb shell dalvikvm -cp /sdcard/bench.jar mobisocial.socialkit.musubi.ObjCursorMapperBenchmark [rows]}.
+ * Not run by the test suite.
+ */
+public class ObjCursorMapperBenchmark {
+    private static final int DEFAULT_ROWS = 5000;
+
+    // Keeps results live so the work isn't optimized away.
+    private static long sSink;
+
+    public static void main(String[] args) {
+        int rows = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_ROWS;
+        MatrixCursor cursor = objCursor(rows);
+        try {
+            // The first pass warms up the JIT; the second is reported.
+            for (int pass = 0; pass < 2; pass++) {
+                boolean report = pass == 1;
+                long mapped = timeMapper(cursor);
+                long byName = timeByName(cursor);
+                if (report) {
+                    System.out.println("ObjCursorMapper: " + rowsPerSecond(rows, mapped)
+                            + " rows/s");
+                    System.out.println("by name per row: " + rowsPerSecond(rows, byName)
+                            + " rows/s");
+                }
+            }
+            System.out.println("(checksum " + sSink + ")");
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long timeMapper(Cursor cursor) {
+        ObjCursorMapper mapper = new ObjCursorMapper(null);
+        long start = System.nanoTime();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            sSink += mapper.objForCursor(cursor).getLocalId();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long timeByName(Cursor cursor) {
+        long start = System.nanoTime();
+        cursor.moveToPosition(-1);
+        while (cursor.moveToNext()) {
+            sSink += decodeByName(cursor).getLocalId();
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Decodes a row the way objects were decoded before the mapper, looking
+     * up each column's index by name.
+     */
+    private static DbObj decodeByName(Cursor c) {
+        long localId = c.getLong(c.getColumnIndexOrThrow(DbObj.COL_ID));
+        String appId = c.getString(c.getColumnIndexOrThrow(DbObj.COL_APP_ID));
+        String type = c.getString(c.getColumnIndexOrThrow(DbObj.COL_TYPE));
+        String name = c.getString(c.getColumnIndexOrThrow(DbObj.COL_STRING_KEY));
+        byte[] json = c.getBlob(c.getColumnIndexOrThrow(DbObj.COL_JSON));
+        long senderId = c.getLong(c.getColumnIndexOrThrow(DbObj.COL_IDENTITY_ID));
+        byte[] hash = c.getBlob(c.getColumnIndexOrThrow(DbObj.COL_UNIVERSAL_HASH));
+        long feedId = c.getLong(c.getColumnIndexOrThrow(DbObj.COL_FEED_ID));
+        int intKeyIndex = c.getColumnIndexOrThrow(DbObj.COL_INT_KEY);
+        Integer intKey = c.isNull(intKeyIndex) ? null : c.getInt(intKeyIndex);
+        long timestamp = c.getLong(c.getColumnIndexOrThrow(DbObj.COL_TIMESTAMP));
+        int parentIndex = c.getColumnIndexOrThrow(DbObj.COL_PARENT_ID);
+        Long parentId = c.isNull(parentIndex) ? null : c.getLong(parentIndex);
+        return new DbObj(null, appId, feedId, parentId, senderId, localId, type, json, true,
+                null, false, intKey, name, timestamp, hash, 0);
+    }
+
+    private static MatrixCursor objCursor(int rows) {
+        String[] columns = DbObj.Projection.DEFAULT.getColumns();
+        MatrixCursor cursor = new MatrixCursor(columns, rows);
+        byte[] json = "{\"text\":\"hello\",\"turn\":3}".getBytes(ObjCodec.UTF_8);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < rows; i++) {
+            Object[] row = new Object[columns.length];
+            for (int col = 0; col < columns.length; col++) {
+                row[col] = value(columns[col], i, json, hash);
+            }
+            cursor.addRow(row);
+        }
+        return cursor;
+    }
+
+    private static Object value(String column, int row, byte[] json, byte[] hash) {
+        if (DbObj.COL_ID.equals(column)) {
+            return (long) row + 1;
+        } else if (DbObj.COL_APP_ID.equals(column)) {
+            return "mobisocial.example";
+        } else if (DbObj.COL_TYPE.equals(column)) {
+            return "status";
+        } else if (DbObj.COL_STRING_KEY.equals(column) || DbObj.COL_PARENT_ID.equals(column)) {
+            return null;
+        } else if (DbObj.COL_JSON.equals(column)) {
+            return json;
+        } else if (DbObj.COL_UNIVERSAL_HASH.equals(column)) {
+            return hash;
+        } else if (DbObj.COL_INT_KEY.equals(column)) {
+            return row % 7;
+        } else if (DbObj.COL_TIMESTAMP.equals(column)) {
+            return 1325376000000L + row;
+        }
+        return 1L;
+    }
+
+    private static long rowsPerSecond(int rows, long nanos) {
+        return (nanos == 0) ? 0 : rows * 1000000000L / nanos;
+    }
+}
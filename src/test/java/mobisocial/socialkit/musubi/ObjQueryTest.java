@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class ObjQueryTest {
+    @Test
+    public void compilesConditionsInOrder() {
+        ObjQuery q = ObjQuery.where(DbObj.COL_TYPE).eq("appstate")
+                .and(DbObj.COL_INT_KEY).gt(5)
+                .and(DbObj.COL_PARENT_ID).isNull();
+        assertEquals("type = ? AND int_key > ? AND parent_id IS NULL", q.getSelection());
+        assertArrayEquals(new String[] { "appstate", "5" }, q.getSelectionArgs());
+        assertNull(q.getSortOrder());
+    }
+
+    @Test
+    public void bindsEveryOperator() {
+        ObjQuery q = ObjQuery.where("a").eq(1).and("b").ne(2).and("c").lt(3).and("d").le(4)
+                .and("e").gt(5).and("f").ge(6).and("g").ne("x").and("h").isNotNull();
+        assertEquals("a = ? AND b != ? AND c < ? AND d <= ? AND e > ? AND f >= ?"
+                + " AND g != ? AND h IS NOT NULL", q.getSelection());
+        assertArrayEquals(new String[] { "1", "2", "3", "4", "5", "6", "x" },
+                q.getSelectionArgs());
+    }
+
+    @Test
+    public void bindsNullEqualityAsIsNull() {
+        ObjQuery q = ObjQuery.where(DbObj.COL_STRING_KEY).eq((String) null)
+                .and(DbObj.COL_APP_ID).ne((String) null)
+                .and(DbObj.COL_FEED_ID).eq(7);
+        assertEquals("string_key IS NULL AND app_id IS NOT NULL AND feed_id = ?",
+                q.getSelection());
+        assertArrayEquals(new String[] { "7" }, q.getSelectionArgs());
+    }
+
+    @Test
+    public void noArgumentsIsNull() {
+        assertNull(ObjQuery.where(DbObj.COL_JSON).isNull().getSelectionArgs());
+    }
+
+    @Test
+    public void limitTravelsWithSortOrder() {
+        ObjQuery q = ObjQuery.where(DbObj.COL_FEED_ID).eq(1)
+                .orderByDesc(DbObj.COL_ID).limit(10);
+        assertEquals("_id desc LIMIT 10", q.getSortOrder());
+        assertEquals("_id asc", ObjQuery.where(DbObj.COL_FEED_ID).eq(1)
+                .orderBy(DbObj.COL_ID).getSortOrder());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void limitRequiresOrdering() {
+        ObjQuery.where(DbObj.COL_FEED_ID).eq(1).limit(10).getSortOrder();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void limitMustBePositive() {
+        ObjQuery.where(DbObj.COL_FEED_ID).eq(1).limit(0);
+    }
+
+    @Test
+    public void selectionIsBoundAheadOfConditions() {
+        ObjQuery q = ObjQuery.withSelection("type = ? OR type = ?", new String[] { "a", "b" })
+                .and(DbObj.COL_ID).lt(42);
+        assertEquals("(type = ? OR type = ?) AND _id < ?", q.getSelection());
+        assertArrayEquals(new String[] { "a", "b", "42" }, q.getSelectionArgs());
+    }
+
+    @Test
+    public void nullSelectionMatchesEverything() {
+        ObjQuery q = ObjQuery.withSelection(null, null);
+        assertNull(q.getSelection());
+        assertNull(q.getSelectionArgs());
+        assertEquals("_id < ?", q.and(DbObj.COL_ID).lt(1).getSelection());
+    }
+
+    @Test
+    public void copyIsRefinedIndependently() {
+        ObjQuery base = ObjQuery.where(DbObj.COL_FEED_ID).eq(3);
+        ObjQuery page = base.copy().and(DbObj.COL_ID).lt(100)
+                .orderByDesc(DbObj.COL_ID).limit(20);
+        assertEquals("feed_id = ?", base.getSelection());
+        assertArrayEquals(new String[] { "3" }, base.getSelectionArgs());
+        assertNull(base.getSortOrder());
+        assertEquals("feed_id = ? AND _id < ?", page.getSelection());
+        assertArrayEquals(new String[] { "3", "100" }, page.getSelectionArgs());
+    }
+
+    @Test
+    public void queriesOfOneShapeShareTheirCompiledClauses() {
+        ObjQuery first = ObjQuery.where(DbObj.COL_TYPE).eq("a")
+                .orderByDesc(DbObj.COL_ID).limit(1);
+        ObjQuery second = ObjQuery.where(DbObj.COL_TYPE).eq("b")
+                .orderByDesc(DbObj.COL_ID).limit(1);
+        assertSame(first.getSelection(), second.getSelection());
+        assertSame(first.getSortOrder(), second.getSortOrder());
+        assertArrayEquals(new String[] { "b" }, second.getSelectionArgs());
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OutboxJournalTest {
+    private File mFile;
+    private OutboxJournal mJournal;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("outbox", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        mFile.delete();
+    }
+
+    @Test
+    public void replaysUnacknowledgedRecordsInOrder() throws IOException {
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(0, replay.size());
+        long first = mJournal.append(body("first"));
+        long second = mJournal.append(body("second"));
+        long third = mJournal.append(body("third"));
+        assertTrue(first < second && second < third);
+        mJournal.ack(new long[] { second }, 1);
+        assertEquals(2, mJournal.getOutstanding());
+
+        replay = reopen();
+        assertEquals(2, replay.size());
+        assertEquals(first, replay.get(0).seq);
+        assertArrayEquals(body("first"), replay.get(0).body);
+        assertEquals(third, replay.get(1).seq);
+        assertArrayEquals(body("third"), replay.get(1).body);
+        assertEquals(2, mJournal.getOutstanding());
+        assertEquals(0, mJournal.getDiscardedBytes());
+    }
+
+    @Test
+    public void sequenceNumbersContinueAcrossOpens() throws IOException {
+        reopen();
+        long seq = mJournal.append(body("kept"));
+        reopen();
+        assertTrue(mJournal.append(body("next")) > seq);
+    }
+
+    @Test
+    public void acknowledgingEverythingTruncates() throws IOException {
+        reopen();
+        long first = mJournal.append(body("first"));
+        long second = mJournal.append(body("second"));
+        mJournal.sync();
+        mJournal.ack(new long[] { first, second }, 2);
+        assertEquals(0, mJournal.getOutstanding());
+        assertEquals(0, mFile.length());
+
+        mJournal.append(body("after"));
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(1, replay.size());
+        assertArrayEquals(body("after"), replay.get(0).body);
+    }
+
+    @Test
+    public void onlyTheGivenCountIsAcknowledged() throws IOException {
+        reopen();
+        long first = mJournal.append(body("first"));
+        long second = mJournal.append(body("second"));
+        mJournal.ack(new long[] { first, second }, 1);
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(1, replay.size());
+        assertEquals(second, replay.get(0).seq);
+    }
+
+    @Test
+    public void tornTailIsDiscardedAndTruncated() throws IOException {
+        reopen();
+        mJournal.append(body("whole"));
+        long validLength = mFile.length();
+        mJournal.append(body("torn"));
+        long fullLength = mFile.length();
+        setLength(fullLength - 3);
+
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(1, replay.size());
+        assertArrayEquals(body("whole"), replay.get(0).body);
+        assertEquals(fullLength - 3 - validLength, mJournal.getDiscardedBytes());
+        assertEquals(validLength, mFile.length());
+
+        // Appends after the cut are readable.
+        mJournal.append(body("later"));
+        replay = reopen();
+        assertEquals(2, replay.size());
+        assertArrayEquals(body("later"), replay.get(1).body);
+    }
+
+    @Test
+    public void recordFailingItsChecksumEndsTheJournal() throws IOException {
+        reopen();
+        mJournal.append(body("good"));
+        long validLength = mFile.length();
+        mJournal.append(body("corrupt"));
+        mJournal.append(body("unreachable"));
+        // Flip a byte in the second record's body, past its length and CRC.
+        flipByte(validLength + 8 + 10);
+
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(1, replay.size());
+        assertArrayEquals(body("good"), replay.get(0).body);
+        assertEquals(validLength, mFile.length());
+        assertTrue(mJournal.getDiscardedBytes() > 0);
+    }
+
+    @Test
+    public void implausibleLengthIsTreatedAsTorn() throws IOException {
+        reopen();
+        mJournal.append(body("good"));
+        long validLength = mFile.length();
+        mJournal.append(body("bad length"));
+        // The length field of the second record.
+        flipByte(validLength);
+
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(1, replay.size());
+        assertEquals(validLength, mFile.length());
+    }
+
+    @Test
+    public void emptyBodiesRoundTrip() throws IOException {
+        reopen();
+        mJournal.append(new byte[0]);
+        List<OutboxJournal.Record> replay = reopen();
+        assertEquals(1, replay.size());
+        assertEquals(0, replay.get(0).body.length);
+    }
+
+    private List<OutboxJournal.Record> reopen() throws IOException {
+        if (mJournal != null) {
+            mJournal.close();
+        }
+        mJournal = new OutboxJournal(mFile);
+        return mJournal.open();
+    }
+
+    private void setLength(long length) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void flipByte(long position) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(position);
+            int b = file.read();
+            file.seek(position);
+            file.write(b ^ 0x40);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static byte[] body(String s) {
+        return s.getBytes(ObjCodec.UTF_8);
+    }
+}
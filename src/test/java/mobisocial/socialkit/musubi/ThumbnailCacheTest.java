@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2011 The Stanford MobiSocial Laboratory
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package mobisocial.socialkit.musubi;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ThumbnailCacheTest {
+    @Test
+    public void unconstrainedRequestsDecodeAtFullSize() {
+        assertEquals(1, ThumbnailCache.sampleSize(400, 300, 0, 0));
+        assertEquals(1, ThumbnailCache.sampleSize(400, 300, -1, -1));
+    }
+
+    @Test
+    public void subsamplesByLargestPowerOfTwoThatStaysLargeEnough() {
+        assertEquals(4, ThumbnailCache.sampleSize(400, 400, 100, 100));
+        assertEquals(2, ThumbnailCache.sampleSize(400, 400, 150, 150));
+        assertEquals(2, ThumbnailCache.sampleSize(400, 400, 101, 101));
+        assertEquals(4, ThumbnailCache.sampleSize(401, 401, 100, 100));
+        assertEquals(8, ThumbnailCache.sampleSize(1024, 1024, 96, 96));
+    }
+
+    @Test
+    public void neverUpscales() {
+        assertEquals(1, ThumbnailCache.sampleSize(50, 50, 100, 100));
+        assertEquals(1, ThumbnailCache.sampleSize(150, 150, 100, 100));
+    }
+
+    @Test
+    public void bothConstrainedDimensionsMustStayLargeEnough() {
+        // Width alone would allow 4; height limits it to 2.
+        assertEquals(2, ThumbnailCache.sampleSize(400, 200, 100, 100));
+        assertEquals(2, ThumbnailCache.sampleSize(200, 400, 100, 100));
+    }
+
+    @Test
+    public void oneConstrainedDimensionLeavesTheOtherFree() {
+        assertEquals(4, ThumbnailCache.sampleSize(400, 200, 100, 0));
+        assertEquals(2, ThumbnailCache.sampleSize(400, 200, 0, 100));
+    }
+}